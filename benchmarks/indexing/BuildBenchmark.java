@@ -0,0 +1,515 @@
+//
+// Times each stage of the browse index build against generated bib and
+// authority indexes.
+//
+// Usage: BuildBenchmark [work dir]
+//
+// The shape of the generated indexes comes from system properties:
+//
+//   bench.bibs        bib records (default 1000000)
+//   bench.auths       authority records (default 100000)
+//   bench.headings    distinct headings to draw from (default 500000)
+//   bench.segments    segments in the bib index (default 10)
+//   bench.deletions   fraction of bib records deleted (default 0)
+//   bench.skew        heading distribution: 1 picks headings uniformly,
+//                     larger values concentrate records on fewer
+//                     headings (default 2)
+//   bench.stages      comma-separated stages to run (default all of:
+//                     leech, parallelleech, storedfieldleech, print, create)
+//
+// Other properties (browse.*, BIBLEECH and friends) are passed through to the
+// indexing tools as usual.  Without a work dir, a temporary one is used and
+// deleted afterwards.
+//
+// Each stage prints one line of key=value pairs: elapsed seconds, records
+// and records/sec, bytes written, peak heap and peak RSS (VmHWM, reset
+// between stages where the kernel allows it).
+//
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+
+public class BuildBenchmark
+{
+    private static final String FIELD = "subject-browse";
+
+    private static final String[] SYLLABLES = {
+        "an", "ber", "cal", "dor", "el", "fin", "gar", "hol", "is", "jun",
+        "ka", "lum", "mor", "nes", "ol", "pra", "quo", "ros", "sta", "tu",
+        "ul", "ver", "wen", "xan", "yor", "zil", "\u00e9", "\u00f8", "\u00f1"
+    };
+
+    private int bibCount = Integer.getInteger ("bench.bibs", 1000000);
+    private int authCount = Integer.getInteger ("bench.auths", 100000);
+    private int headingCount = Integer.getInteger ("bench.headings", 500000);
+    private int segments = Math.max (1, Integer.getInteger ("bench.segments", 10));
+    private double deletions = Double.parseDouble (System.getProperty ("bench.deletions", "0"));
+    private double skew = Double.parseDouble (System.getProperty ("bench.skew", "2"));
+
+    private Random random = new Random (42);
+    private String[] headings;
+
+    private File bibPath;
+    private File authPath;
+    private File headingsFile;
+    private File dbFile;
+
+    // Headings written by the print stage, which is what the create stage
+    // gets through.
+    private long printedHeadings = -1;
+
+
+    private String word ()
+    {
+        StringBuilder sb = new StringBuilder ();
+        int syllables = 1 + random.nextInt (3);
+
+        for (int i = 0; i < syllables; i++) {
+            sb.append (SYLLABLES[random.nextInt (SYLLABLES.length)]);
+        }
+
+        return sb.toString ();
+    }
+
+
+    private void generateHeadings ()
+    {
+        Set<String> seen = new HashSet<String> ();
+        headings = new String[headingCount];
+
+        for (int i = 0; i < headingCount; i++) {
+            String h;
+            do {
+                StringBuilder sb = new StringBuilder (word ());
+                sb.setCharAt (0, Character.toUpperCase (sb.charAt (0)));
+
+                int words = 1 + random.nextInt (4);
+                for (int w = 0; w < words; w++) {
+                    sb.append (w == 0 ? ", " : " ").append (word ());
+                }
+
+                if (random.nextInt (4) == 0) {
+                    sb.append (" -- ").append (1800 + random.nextInt (220));
+                }
+
+                h = sb.toString ();
+            } while (!seen.add (h));
+
+            headings[i] = h;
+        }
+    }
+
+
+    private String pickHeading ()
+    {
+        return headings[(int) (headingCount * Math.pow (random.nextDouble (), skew))];
+    }
+
+
+    private IndexWriter openWriter (File path) throws IOException
+    {
+        IndexWriterConfig config = new IndexWriterConfig (Version.LUCENE_CURRENT,
+                                                          new KeywordAnalyzer ());
+        config.setOpenMode (IndexWriterConfig.OpenMode.CREATE);
+
+        // We decide where the segments go
+        config.setMergePolicy (NoMergePolicy.NO_COMPOUND_FILES);
+        config.setMaxBufferedDocs (IndexWriterConfig.DISABLE_AUTO_FLUSH);
+        config.setRAMBufferSizeMB (IndexWriterConfig.DISABLE_AUTO_FLUSH);
+
+        return new IndexWriter (FSDirectory.open (path), config);
+    }
+
+
+    private void createBibIndex () throws IOException
+    {
+        IndexWriter writer = openWriter (bibPath);
+        int perSegment = (bibCount + segments - 1) / segments;
+
+        for (int i = 0; i < bibCount; i++) {
+            Document doc = new Document ();
+
+            doc.add (new StringField ("id", "bib" + i, Field.Store.YES));
+
+            // For StoredFieldLeech
+            String title = pickHeading ();
+            doc.add (new StoredField ("title", title));
+            doc.add (new StoredField ("title_sort", title.toLowerCase ()));
+
+            int n = 1 + random.nextInt (3);
+            for (int j = 0; j < n; j++) {
+                doc.add (new StringField (FIELD, pickHeading (), Field.Store.NO));
+            }
+
+            writer.addDocument (doc);
+
+            if ((i + 1) % perSegment == 0) {
+                writer.commit ();
+            }
+        }
+
+        writer.commit ();
+
+        if (deletions > 0) {
+            for (int i = 0; i < bibCount; i++) {
+                if (random.nextDouble () < deletions) {
+                    writer.deleteDocuments (new Term ("id", "bib" + i));
+                }
+            }
+        }
+
+        writer.close ();
+    }
+
+
+    private void createAuthIndex () throws IOException
+    {
+        IndexWriter writer = openWriter (authPath);
+
+        for (int i = 0; i < authCount; i++) {
+            Document doc = new Document ();
+            String preferred = pickHeading ();
+
+            doc.add (new StringField ("id", "auth" + i, Field.Store.YES));
+            doc.add (new StringField ("preferred", preferred, Field.Store.YES));
+            doc.add (new StringField ("insteadOf", preferred + " (variant " + i + ")",
+                                      Field.Store.YES));
+            doc.add (new StringField ("seeAlso", pickHeading (), Field.Store.YES));
+
+            writer.addDocument (doc);
+        }
+
+        writer.close ();
+    }
+
+
+    //
+    // Measurement
+    //
+
+    private static void resetPeaks ()
+    {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans ()) {
+            pool.resetPeakUsage ();
+        }
+
+        // Resets VmHWM on Linux.  Elsewhere, or on older kernels, peak RSS
+        // will be the peak for the whole run so far.
+        try {
+            FileWriter clear = new FileWriter ("/proc/self/clear_refs");
+            try {
+                clear.write ("5");
+            } finally {
+                clear.close ();
+            }
+        } catch (IOException e) {
+        }
+    }
+
+
+    private static long peakHeap ()
+    {
+        long result = 0;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans ()) {
+            if (pool.getType () == MemoryType.HEAP) {
+                result += pool.getPeakUsage ().getUsed ();
+            }
+        }
+
+        return result;
+    }
+
+
+    // In bytes, or -1 if we can't tell.
+    private static long peakRSS ()
+    {
+        try {
+            BufferedReader in = new BufferedReader (new FileReader ("/proc/self/status"));
+            try {
+                String line;
+                while ((line = in.readLine ()) != null) {
+                    if (line.startsWith ("VmHWM:")) {
+                        String[] fields = line.trim ().split ("\\s+");
+                        return Long.parseLong (fields[1]) * 1024;
+                    }
+                }
+            } finally {
+                in.close ();
+            }
+        } catch (IOException e) {
+        }
+
+        return -1;
+    }
+
+
+    private static long sizeOf (File f)
+    {
+        long result = f.length ();
+
+        File[] children = f.listFiles ();
+        if (children != null) {
+            for (File child : children) {
+                result += sizeOf (child);
+            }
+        }
+
+        return result;
+    }
+
+
+    private static void delete (File f)
+    {
+        File[] children = f.listFiles ();
+        if (children != null) {
+            for (File child : children) {
+                delete (child);
+            }
+        }
+
+        f.delete ();
+    }
+
+
+    private abstract class Stage
+    {
+        String name;
+
+        Stage (String name)
+        {
+            this.name = name;
+        }
+
+        abstract void run () throws Exception;
+
+        // The number of records the stage got through.  Called after
+        // run, outside of the timings.
+        abstract long records () throws Exception;
+
+        long bytesWritten ()
+        {
+            return 0;
+        }
+
+
+        void measure () throws Exception
+        {
+            System.gc ();
+            resetPeaks ();
+
+            long start = System.nanoTime ();
+            run ();
+            double elapsed = (System.nanoTime () - start) / 1000000000.0;
+
+            long heap = peakHeap ();
+            long rss = peakRSS ();
+            long records = records ();
+
+            System.out.println (String.format ("stage=%s seconds=%.2f records=%d " +
+                                               "records_per_sec=%.0f bytes_written=%d " +
+                                               "peak_heap_mb=%.1f peak_rss_mb=%.1f",
+                                               name, elapsed, records,
+                                               records / elapsed,
+                                               bytesWritten (),
+                                               heap / 1048576.0,
+                                               rss / 1048576.0));
+        }
+    }
+
+
+    private class LeechStage extends Stage
+    {
+        long count;
+
+        LeechStage (String name)
+        {
+            super (name);
+        }
+
+        Leech open () throws Exception
+        {
+            return new Leech (bibPath.getPath (), FIELD);
+        }
+
+        void run () throws Exception
+        {
+            Leech leech = open ();
+            count = 0;
+
+            try {
+                while (leech.next () != null) {
+                    count++;
+                }
+            } finally {
+                leech.dropOff ();
+            }
+        }
+
+        long records ()
+        {
+            return count;
+        }
+    }
+
+
+    private List<Stage> stages ()
+    {
+        List<Stage> result = new ArrayList<Stage> ();
+
+        result.add (new LeechStage ("leech"));
+
+        result.add (new LeechStage ("parallelleech") {
+                Leech open () throws Exception
+                {
+                    return new ParallelLeech (bibPath.getPath (), FIELD);
+                }
+            });
+
+        result.add (new LeechStage ("storedfieldleech") {
+                Leech open () throws Exception
+                {
+                    System.setProperty ("sortfield", "title_sort");
+                    System.setProperty ("valuefield", "title");
+
+                    return new StoredFieldLeech (bibPath.getPath (), FIELD);
+                }
+            });
+
+        result.add (new Stage ("print") {
+                void run () throws Exception
+                {
+                    new PrintBrowseHeadings ().create (bibPath.getPath (), FIELD,
+                                                       authPath.getPath (),
+                                                       headingsFile.getPath ());
+                }
+
+                long records () throws Exception
+                {
+                    printedHeadings = countHeadings (headingsFile);
+                    return printedHeadings;
+                }
+
+                long bytesWritten ()
+                {
+                    return headingsFile.length ();
+                }
+            });
+
+        result.add (new Stage ("create") {
+                void run () throws Exception
+                {
+                    if (!headingsFile.exists ()) {
+                        throw new IOException ("The create stage needs the print stage's output");
+                    }
+
+                    dbFile.delete ();
+                    new CreateBrowseSQLite ().create (headingsFile.getPath (),
+                                                      dbFile.getPath ());
+                }
+
+                long records () throws Exception
+                {
+                    if (printedHeadings < 0) {
+                        printedHeadings = countHeadings (headingsFile);
+                    }
+
+                    return printedHeadings;
+                }
+
+                long bytesWritten ()
+                {
+                    return dbFile.length ();
+                }
+            });
+
+        return result;
+    }
+
+
+    private static long countHeadings (File file) throws IOException
+    {
+        HeadingFileReader in = new HeadingFileReader (file.getPath ());
+        long count = 0;
+
+        try {
+            while (in.next ()) {
+                count++;
+            }
+        } finally {
+            in.close ();
+        }
+
+        return count;
+    }
+
+
+    public void run (File dir) throws Exception
+    {
+        bibPath = new File (dir, "bib");
+        authPath = new File (dir, "auth");
+        headingsFile = new File (dir, "headings.txt");
+        dbFile = new File (dir, "browse.db");
+
+        Set<String> wanted = new HashSet<String>
+            (Arrays.asList (System.getProperty ("bench.stages",
+                                                "leech,parallelleech,storedfieldleech," +
+                                                "print,create").split (",")));
+
+        long start = System.nanoTime ();
+        generateHeadings ();
+        createBibIndex ();
+        createAuthIndex ();
+
+        System.out.println (String.format ("generated bibs=%d auths=%d headings=%d " +
+                                           "segments=%d deletions=%.2f skew=%.1f " +
+                                           "bib_bytes=%d auth_bytes=%d seconds=%.2f",
+                                           bibCount, authCount, headingCount,
+                                           segments, deletions, skew,
+                                           sizeOf (bibPath), sizeOf (authPath),
+                                           (System.nanoTime () - start) / 1000000000.0));
+
+        // The generator's data isn't part of any stage's footprint
+        headings = null;
+
+        for (Stage stage : stages ()) {
+            if (!wanted.contains (stage.name)) {
+                continue;
+            }
+
+            stage.measure ();
+        }
+    }
+
+
+    public static void main (String args[]) throws Exception
+    {
+        File dir;
+        boolean temporary = (args.length == 0);
+
+        if (temporary) {
+            dir = File.createTempFile ("browse-build-bench", "");
+            dir.delete ();
+        } else {
+            dir = new File (args[0]);
+        }
+
+        dir.mkdirs ();
+
+        try {
+            new BuildBenchmark ().run (dir);
+        } finally {
+            if (temporary) {
+                delete (dir);
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package org.vufind.solr.handler;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.SECONDS)
+public class AuthDBBenchmark
+{
+    // Most headings have no authority record, so this is mostly the cost
+    // of the two searches that come up empty.
+    @Benchmark
+    public Map<String, List<String>> getFields (BrowseFixture fixture) throws Exception
+    {
+        return fixture.authDB.getFields (fixture.randomHeading ());
+    }
+
+
+    @Benchmark
+    public Map<String, List<String>> getFieldsNonPreferred (BrowseFixture fixture)
+        throws Exception
+    {
+        return fixture.authDB.getFields (fixture.randomNonPreferredHeading ());
+    }
+}
@@ -0,0 +1,34 @@
+package org.vufind.solr.handler;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.SECONDS)
+public class BibDBBenchmark
+{
+    @Benchmark
+    public int recordCount (BrowseFixture fixture) throws Exception
+    {
+        return fixture.bibDB.recordCount (fixture.randomHeading ());
+    }
+
+
+    @Benchmark
+    public Map<String, List<Collection<String>>> matchingIDs (BrowseFixture fixture)
+        throws Exception
+    {
+        return fixture.bibDB.matchingIDs (fixture.randomHeading (), "");
+    }
+
+
+    @Benchmark
+    public Map<String, List<Collection<String>>> matchingIDsWithExtras (BrowseFixture fixture)
+        throws Exception
+    {
+        return fixture.bibDB.matchingIDs (fixture.randomHeading (), BrowseFixture.EXTRAS);
+    }
+}
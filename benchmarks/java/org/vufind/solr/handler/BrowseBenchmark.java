@@ -0,0 +1,39 @@
+package org.vufind.solr.handler;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.SECONDS)
+public class BrowseBenchmark
+{
+    @Benchmark
+    public BrowseList getList (BrowseFixture fixture) throws Exception
+    {
+        return fixture.browse.getList (fixture.bibDB, fixture.randomRowid (), 0,
+                                       BrowseFixture.ROWS, "");
+    }
+
+
+    @Benchmark
+    public BrowseList getListWithExtras (BrowseFixture fixture) throws Exception
+    {
+        return fixture.browse.getList (fixture.bibDB, fixture.randomRowid (), 0,
+                                       BrowseFixture.ROWS, BrowseFixture.EXTRAS);
+    }
+
+
+    // What a result-list sidebar needs
+    private static final Set<String> HEADINGS_AND_COUNTS =
+        new HashSet<String> (Arrays.asList ("heading", "count"));
+
+    @Benchmark
+    public BrowseList getListHeadingsAndCounts (BrowseFixture fixture) throws Exception
+    {
+        return fixture.browse.getList (fixture.bibDB, null, fixture.randomRowid (), 0,
+                                       BrowseFixture.ROWS, "", HEADINGS_AND_COUNTS, 0);
+    }
+}
@@ -0,0 +1,327 @@
+package org.vufind.solr.handler;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.sql.*;
+import java.util.*;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.vufind.util.Normalizer;
+import org.vufind.util.NormalizerFactory;
+import org.vufind.util.SortKeys;
+
+/**
+ * Synthetic browse data for the benchmarks: a headings DB, a bib index
+ * and an authority index, built in a temporary directory.
+ *
+ * Bib records get between one and three headings each, skewed so that a
+ * few headings are attached to many records and most to only a handful.
+ * One heading in ten gets an authority record with a see also reference, a
+ * scope note and a non-preferred form.
+ */
+@State(Scope.Benchmark)
+public class BrowseFixture
+{
+    static final String FIELD = "subject-browse";
+    static final String EXTRAS = "title:format";
+    static final int ROWS = 20;
+
+    @Param({"100000"})
+    public int headingCount;
+
+    @Param({"200000"})
+    public int bibCount;
+
+    File dir;
+
+    String[] headings;
+    String[] nonPreferredHeadings;
+
+    HeadingsDB headingsDB;
+    AuthDB authDB;
+    BibDB bibDB;
+    Browse browse;
+    IndexReader bibReader;
+
+    private Random random = new Random (42);
+
+
+    private static final String[] SYLLABLES = {
+        "an", "ber", "cal", "dor", "el", "fin", "gar", "hol", "is", "jun",
+        "ka", "lum", "mor", "nes", "ol", "pra", "quo", "ros", "sta", "tu",
+        "ul", "ver", "wen", "xan", "yor", "zil", "\u00e9", "\u00f8", "\u00f1"
+    };
+
+
+    private String word ()
+    {
+        StringBuilder sb = new StringBuilder ();
+        int syllables = 1 + random.nextInt (3);
+
+        for (int i = 0; i < syllables; i++) {
+            sb.append (SYLLABLES[random.nextInt (SYLLABLES.length)]);
+        }
+
+        return sb.toString ();
+    }
+
+
+    private String heading ()
+    {
+        StringBuilder sb = new StringBuilder (word ());
+        sb.setCharAt (0, Character.toUpperCase (sb.charAt (0)));
+
+        int words = 1 + random.nextInt (4);
+        for (int i = 0; i < words; i++) {
+            sb.append (i == 0 ? ", " : " ").append (word ());
+        }
+
+        if (random.nextInt (4) == 0) {
+            sb.append (" -- ").append (1800 + random.nextInt (220));
+        }
+
+        return sb.toString ();
+    }
+
+
+    // Skewed towards the start of the headings list
+    private int pickHeading ()
+    {
+        double r = random.nextDouble ();
+        return (int) (headingCount * r * r * r);
+    }
+
+
+    private void createHeadingsDB (File path) throws Exception
+    {
+        final Normalizer normalizer = NormalizerFactory.getNormalizer ();
+        final Map<String, byte[]> keys = new HashMap<String, byte[]> ();
+
+        for (String h : headings) {
+            keys.put (h, normalizer.normalize (h));
+        }
+
+        String[] sorted = headings.clone ();
+        Arrays.sort (sorted, new Comparator<String> () {
+                public int compare (String a, String b)
+                {
+                    return SortKeys.compare (keys.get (a), keys.get (b));
+                }
+            });
+
+        path.delete ();
+
+        Class.forName ("org.sqlite.JDBC");
+        Connection db = DriverManager.getConnection ("jdbc:sqlite:" + path);
+
+        Statement stat = db.createStatement ();
+        stat.executeUpdate ("create table headings (key, heading);");
+        stat.close ();
+
+        db.setAutoCommit (false);
+
+        PreparedStatement prep = db.prepareStatement
+            ("insert into headings (key, heading) values (?, ?)");
+
+        for (String h : sorted) {
+            prep.setBytes (1, keys.get (h));
+            prep.setBytes (2, h.getBytes (Charset.forName ("UTF-8")));
+            prep.addBatch ();
+        }
+
+        prep.executeBatch ();
+        prep.close ();
+        db.commit ();
+        db.setAutoCommit (true);
+
+        stat = db.createStatement ();
+        stat.executeUpdate ("create index keyindex on headings (key);");
+        stat.close ();
+
+        db.close ();
+    }
+
+
+    private IndexWriter openWriter (File path) throws IOException
+    {
+        IndexWriterConfig config = new IndexWriterConfig (Version.LUCENE_CURRENT,
+                                                          new KeywordAnalyzer ());
+        config.setOpenMode (IndexWriterConfig.OpenMode.CREATE);
+
+        return new IndexWriter (FSDirectory.open (path), config);
+    }
+
+
+    private void createBibIndex (File path) throws IOException
+    {
+        IndexWriter writer = openWriter (path);
+
+        for (int i = 0; i < bibCount; i++) {
+            Document doc = new Document ();
+
+            doc.add (new StringField ("id", "bib" + i, Field.Store.YES));
+            doc.add (new StoredField ("title", "Title of record " + i));
+            doc.add (new StringField ("format", (i % 3 == 0) ? "Book" : "Journal",
+                                      Field.Store.YES));
+
+            int n = 1 + random.nextInt (3);
+            for (int j = 0; j < n; j++) {
+                doc.add (new StringField (FIELD, headings[pickHeading ()], Field.Store.NO));
+            }
+
+            writer.addDocument (doc);
+        }
+
+        writer.close ();
+    }
+
+
+    private void createAuthIndex (File path) throws IOException
+    {
+        IndexWriter writer = openWriter (path);
+        List<String> nonPreferred = new ArrayList<String> ();
+
+        for (int i = 0; i < headingCount; i += 10) {
+            Document doc = new Document ();
+            String variant = headings[i] + " (variant)";
+
+            doc.add (new StringField ("id", "auth" + i, Field.Store.YES));
+            doc.add (new StringField ("preferred", headings[i], Field.Store.YES));
+            doc.add (new StringField ("insteadOf", variant, Field.Store.YES));
+            doc.add (new StringField ("seeAlso", headings[(i + 1) % headingCount], Field.Store.YES));
+            doc.add (new StoredField ("scopeNote", "Use for works about " + headings[i]));
+
+            // Something bulky, like the MARC record a real authority index
+            // would have
+            StringBuilder marc = new StringBuilder ();
+            for (int j = 0; j < 50; j++) {
+                marc.append (headings[(i + j) % headingCount]).append ('\u001e');
+            }
+            doc.add (new StoredField ("fullrecord", marc.toString ()));
+
+            writer.addDocument (doc);
+            nonPreferred.add (variant);
+        }
+
+        writer.close ();
+
+        nonPreferredHeadings = nonPreferred.toArray (new String[nonPreferred.size ()]);
+    }
+
+
+    /*
+     * Generate the headings and write the three databases to the given
+     * paths.  Also used by LoadTest, which needs the bib index inside a Solr
+     * core.
+     */
+    void generate (File headingsPath, File bibPath, File authPath) throws Exception
+    {
+        headings = new String[headingCount];
+        Set<String> seen = new HashSet<String> ();
+        for (int i = 0; i < headingCount; i++) {
+            String h;
+            do {
+                h = heading ();
+            } while (!seen.add (h));
+
+            headings[i] = h;
+        }
+
+        createHeadingsDB (headingsPath);
+        createBibIndex (bibPath);
+        createAuthIndex (authPath);
+    }
+
+
+    static File createTempDir (String prefix) throws IOException
+    {
+        File dir = File.createTempFile (prefix, "");
+        dir.delete ();
+        dir.mkdirs ();
+
+        return dir;
+    }
+
+
+    @Setup (Level.Trial)
+    public void setUp () throws Exception
+    {
+        dir = createTempDir ("browse-bench");
+
+        generate (new File (dir, "headings.db"),
+                  new File (dir, "bib"),
+                  new File (dir, "auth"));
+
+        headingsDB = new HeadingsDB (new File (dir, "headings.db").getPath ());
+        headingsDB.reopenIfUpdated ();
+        headingsDB.queryFinished ();
+
+        authDB = new AuthDB (new File (dir, "auth").getPath (),
+                             "preferred", "insteadOf", "seeAlso", "scopeNote");
+        authDB.reopenIfUpdated ();
+
+        bibReader = DirectoryReader.open (FSDirectory.open (new File (dir, "bib")));
+        bibDB = new BibDB (new IndexSearcher (bibReader), FIELD);
+
+        browse = new Browse (headingsDB, authDB);
+    }
+
+
+    @TearDown (Level.Trial)
+    public void tearDown () throws Exception
+    {
+        bibReader.close ();
+        delete (dir);
+    }
+
+
+    static void delete (File f)
+    {
+        File[] children = f.listFiles ();
+        if (children != null) {
+            for (File child : children) {
+                delete (child);
+            }
+        }
+
+        f.delete ();
+    }
+
+
+    //
+    // Inputs for the benchmarks.  Not thread-safe, but each benchmark
+    // thread only needs a spread of values, not a particular sequence.
+    //
+
+    String randomHeading ()
+    {
+        return headings[pickHeading ()];
+    }
+
+
+    String randomNonPreferredHeading ()
+    {
+        return nonPreferredHeadings[random.nextInt (nonPreferredHeadings.length)];
+    }
+
+
+    String randomFrom ()
+    {
+        String h = headings[random.nextInt (headingCount)];
+        return h.substring (0, 1 + random.nextInt (Math.min (h.length (), 6)));
+    }
+
+
+    int randomRowid ()
+    {
+        return 1 + random.nextInt (headingCount);
+    }
+}
@@ -0,0 +1,32 @@
+package org.vufind.solr.handler;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.SECONDS)
+public class HeadingsDBBenchmark
+{
+    @Benchmark
+    public int getHeadingStart (BrowseFixture fixture) throws Exception
+    {
+        return fixture.headingsDB.getHeadingStart (fixture.randomFrom ());
+    }
+
+
+    @Benchmark
+    public HeadingSlice getHeadings (BrowseFixture fixture) throws Exception
+    {
+        return fixture.headingsDB.getHeadings (fixture.randomRowid (), BrowseFixture.ROWS);
+    }
+
+
+    @Benchmark
+    public List<String> getSuggestions (BrowseFixture fixture) throws Exception
+    {
+        return fixture.headingsDB.getSuggestions (fixture.randomFrom (), 10);
+    }
+}
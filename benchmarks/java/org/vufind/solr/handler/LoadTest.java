@@ -0,0 +1,467 @@
+package org.vufind.solr.handler;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestHandler;
+import org.apache.solr.response.SolrQueryResponse;
+
+
+/**
+ * Drives BrowseRequestHandler in an embedded Solr core, with no network in
+ * the way, and reports latency percentiles, throughput and errors.
+ *
+ * Usage: LoadTest [query log]
+ *
+ * The query log has one request per line in query string form, e.g.
+ *
+ *   source=subjects&from=boats&rows=20
+ *   source=subjects&rowid=1234&offset=-5&rows=20&extras=title:format
+ *
+ * with blank lines and lines starting with '#' ignored.  A line reading
+ * "swap" installs a new copy of the headings DB (see swapHeadingsDB) when
+ * it's replayed.  The log is replayed from the top as many times as
+ * needed.  Without a log, a mix of from, rowid/offset and extras requests
+ * is made up from the generated headings.
+ *
+ * Settings are system properties:
+ *
+ *   loadtest.threads        concurrent clients (default 8)
+ *   loadtest.duration       seconds to run for (default 60)
+ *   loadtest.warmup         seconds to run before measuring (default 10)
+ *   loadtest.swap.interval  seconds between headings DB swaps (default 0,
+ *                           meaning only swap when the log says to)
+ *   loadtest.headings       headings to generate (default 100000)
+ *   loadtest.bibs           bib records to generate (default 200000)
+ *   loadtest.dir            where to build the Solr home (default: a
+ *                           temporary directory, deleted afterwards)
+ */
+public class LoadTest
+{
+    static final String CORE = "biblio";
+    static final String SOURCE = "subjects";
+
+    private File home;
+    private File headingsPath;
+    private BrowseFixture fixture = new BrowseFixture ();
+
+    private CoreContainer container;
+    private SolrCore core;
+    private SolrRequestHandler handler;
+
+    private List<String> log;
+
+    private AtomicLong nextRequest = new AtomicLong ();
+    private AtomicInteger swaps = new AtomicInteger ();
+
+    private volatile boolean measuring = false;
+    private volatile boolean finished = false;
+
+
+    private static void writeFile (File file, String content) throws IOException
+    {
+        file.getParentFile ().mkdirs ();
+
+        Writer out = new OutputStreamWriter (new FileOutputStream (file), "UTF-8");
+        try {
+            out.write (content);
+        } finally {
+            out.close ();
+        }
+    }
+
+
+    private void createSolrHome (File authPath) throws IOException
+    {
+        File instanceDir = new File (home, CORE);
+
+        writeFile (new File (home, "solr.xml"),
+                   "<solr persistent=\"false\">\n" +
+                   "  <cores adminPath=\"/admin/cores\">\n" +
+                   "    <core name=\"" + CORE + "\" instanceDir=\"" + CORE + "\"/>\n" +
+                   "  </cores>\n" +
+                   "</solr>\n");
+
+        writeFile (new File (instanceDir, "conf/schema.xml"),
+                   "<schema name=\"loadtest\" version=\"1.5\">\n" +
+                   "  <types>\n" +
+                   "    <fieldType name=\"string\" class=\"solr.StrField\"/>\n" +
+                   "  </types>\n" +
+                   "  <fields>\n" +
+                   "    <field name=\"id\" type=\"string\" indexed=\"true\" stored=\"true\" required=\"true\"/>\n" +
+                   "    <field name=\"" + BrowseFixture.FIELD + "\" type=\"string\" indexed=\"true\" stored=\"false\" multiValued=\"true\"/>\n" +
+                   "    <field name=\"title\" type=\"string\" indexed=\"false\" stored=\"true\"/>\n" +
+                   "    <field name=\"format\" type=\"string\" indexed=\"true\" stored=\"true\"/>\n" +
+                   "  </fields>\n" +
+                   "  <uniqueKey>id</uniqueKey>\n" +
+                   "</schema>\n");
+
+        writeFile (new File (instanceDir, "conf/solrconfig.xml"),
+                   "<config>\n" +
+                   "  <luceneMatchVersion>LUCENE_CURRENT</luceneMatchVersion>\n" +
+                   "  <requestHandler name=\"standard\" class=\"solr.StandardRequestHandler\" default=\"true\"/>\n" +
+                   "  <requestHandler name=\"/browse\" class=\"org.vufind.solr.handler.BrowseRequestHandler\">\n" +
+                   "    <str name=\"authIndexPath\">" + authPath.getAbsolutePath () + "</str>\n" +
+                   "    <str name=\"bibIndexPath\">" + new File (instanceDir, "data/index").getAbsolutePath () + "</str>\n" +
+                   "    <str name=\"sources\">" + SOURCE + "</str>\n" +
+                   "    <str name=\"preferredHeadingField\">preferred</str>\n" +
+                   "    <str name=\"useInsteadHeadingField\">insteadOf</str>\n" +
+                   "    <str name=\"seeAlsoHeadingField\">seeAlso</str>\n" +
+                   "    <str name=\"scopeNoteField\">scopeNote</str>\n" +
+                   "    <lst name=\"" + SOURCE + "\">\n" +
+                   "      <str name=\"DBpath\">" + headingsPath.getAbsolutePath () + "</str>\n" +
+                   "      <str name=\"field\">" + BrowseFixture.FIELD + "</str>\n" +
+                   "    </lst>\n" +
+                   "  </requestHandler>\n" +
+                   "</config>\n");
+    }
+
+
+    /*
+     * CoreContainer.load () arrived in Solr 4.4, replacing the Initializer
+     * (which finds the home through solr.solr.home).  Use whichever this
+     * version has, so the load test builds against the same Solr versions
+     * as the handler.
+     */
+    private static CoreContainer openContainer (File home) throws Exception
+    {
+        Method load;
+
+        try {
+            load = CoreContainer.class.getMethod ("load");
+        } catch (NoSuchMethodException e) {
+            System.setProperty ("solr.solr.home", home.getAbsolutePath ());
+
+            Class<?> initializer = Class.forName ("org.apache.solr.core.CoreContainer$Initializer");
+
+            return (CoreContainer) initializer.getMethod ("initialize")
+                .invoke (initializer.newInstance ());
+        }
+
+        CoreContainer result = CoreContainer.class.getConstructor (String.class)
+            .newInstance (home.getAbsolutePath ());
+        load.invoke (result);
+
+        return result;
+    }
+
+
+    public void setUp () throws Exception
+    {
+        fixture.headingCount = Integer.getInteger ("loadtest.headings", 100000);
+        fixture.bibCount = Integer.getInteger ("loadtest.bibs", 200000);
+
+        headingsPath = new File (home, "headings.db");
+        File authPath = new File (home, "auth");
+
+        System.out.println ("Generating " + fixture.headingCount + " headings and " +
+                            fixture.bibCount + " bib records in " + home);
+
+        fixture.generate (headingsPath,
+                          new File (home, CORE + "/data/index"),
+                          authPath);
+
+        createSolrHome (authPath);
+
+        container = openContainer (home);
+
+        core = container.getCore (CORE);
+        handler = core.getRequestHandler ("/browse");
+    }
+
+
+    public void tearDown ()
+    {
+        if (core != null) {
+            core.close ();
+        }
+
+        if (container != null) {
+            container.shutdown ();
+        }
+    }
+
+
+    private List<String> readLog (String path) throws IOException
+    {
+        List<String> result = new ArrayList<String> ();
+        BufferedReader in = new BufferedReader
+            (new InputStreamReader (new FileInputStream (path), "UTF-8"));
+
+        try {
+            String line;
+            while ((line = in.readLine ()) != null) {
+                line = line.trim ();
+                if (line.length () > 0 && !line.startsWith ("#")) {
+                    result.add (line);
+                }
+            }
+        } finally {
+            in.close ();
+        }
+
+        if (result.isEmpty ()) {
+            throw new IOException ("No requests in " + path);
+        }
+
+        return result;
+    }
+
+
+    // Roughly: half of requests start from a typed-in heading, the rest page
+    // forwards or backwards from a rowid, a third ask for extras and a
+    // quarter filter by format.
+    private List<String> syntheticLog () throws UnsupportedEncodingException
+    {
+        List<String> result = new ArrayList<String> ();
+        Random random = new Random (42);
+
+        for (int i = 0; i < 10000; i++) {
+            StringBuilder request = new StringBuilder ("source=" + SOURCE + "&rows=20");
+
+            if (random.nextBoolean ()) {
+                request.append ("&from=")
+                    .append (URLEncoder.encode (fixture.randomFrom (), "UTF-8"));
+            } else {
+                request.append ("&rowid=").append (fixture.randomRowid ());
+                request.append ("&offset=").append (random.nextBoolean () ? 0 : -20);
+            }
+
+            if (random.nextInt (3) == 0) {
+                request.append ("&extras=").append (BrowseFixture.EXTRAS);
+            }
+
+            if (random.nextInt (4) == 0) {
+                request.append ("&fq=format:").append (random.nextBoolean () ? "Book" : "Journal");
+            }
+
+            result.add (request.toString ());
+        }
+
+        return result;
+    }
+
+
+    private static ModifiableSolrParams parseRequest (String line)
+        throws UnsupportedEncodingException
+    {
+        ModifiableSolrParams params = new ModifiableSolrParams ();
+
+        for (String pair : line.split ("&")) {
+            int eq = pair.indexOf ('=');
+            if (eq > 0) {
+                params.add (URLDecoder.decode (pair.substring (0, eq), "UTF-8"),
+                            URLDecoder.decode (pair.substring (eq + 1), "UTF-8"));
+            }
+        }
+
+        return params;
+    }
+
+
+    /*
+     * Install a new copy of the headings DB the way the indexing tools do:
+     * write <db>-updated, then create <db>-ready.  The handler picks it up on
+     * its next request.
+     */
+    private synchronized void swapHeadingsDB () throws IOException
+    {
+        File updated = new File (headingsPath.getPath () + "-updated");
+        File ready = new File (headingsPath.getPath () + "-ready");
+
+        if (ready.exists ()) {
+            // The last one hasn't been picked up yet.
+            return;
+        }
+
+        FileChannel in = new FileInputStream (headingsPath).getChannel ();
+        FileChannel out = new FileOutputStream (updated).getChannel ();
+        try {
+            long size = in.size ();
+            for (long pos = 0; pos < size; ) {
+                pos += in.transferTo (pos, size - pos, out);
+            }
+        } finally {
+            in.close ();
+            out.close ();
+        }
+
+        ready.createNewFile ();
+        swaps.incrementAndGet ();
+    }
+
+
+    private class Client implements Callable<Void>
+    {
+        long[] latencies = new long[1024];
+        int count = 0;
+        int errors = 0;
+
+
+        private void record (long nanos)
+        {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf (latencies, count * 2);
+            }
+
+            latencies[count++] = nanos;
+        }
+
+
+        public Void call () throws Exception
+        {
+            while (!finished) {
+                String line = log.get ((int) (nextRequest.getAndIncrement () % log.size ()));
+
+                if (line.equals ("swap")) {
+                    swapHeadingsDB ();
+                    continue;
+                }
+
+                SolrQueryRequest req = new LocalSolrQueryRequest (core, parseRequest (line));
+                SolrQueryResponse rsp = new SolrQueryResponse ();
+
+                long start = System.nanoTime ();
+                try {
+                    handler.handleRequest (req, rsp);
+                } finally {
+                    req.close ();
+                }
+                long elapsed = System.nanoTime () - start;
+
+                if (measuring) {
+                    record (elapsed);
+
+                    if (rsp.getException () != null) {
+                        errors++;
+                    }
+                }
+            }
+
+            return null;
+        }
+    }
+
+
+    private static double percentile (long[] sorted, double p)
+    {
+        if (sorted.length == 0) {
+            return 0;
+        }
+
+        int index = (int) Math.ceil (p * sorted.length) - 1;
+        return sorted[Math.max (0, index)] / 1000000.0;
+    }
+
+
+    public void run (String logPath) throws Exception
+    {
+        log = (logPath != null) ? readLog (logPath) : syntheticLog ();
+
+        int threads = Integer.getInteger ("loadtest.threads", 8);
+        int warmup = Integer.getInteger ("loadtest.warmup", 10);
+        int duration = Integer.getInteger ("loadtest.duration", 60);
+        int swapInterval = Integer.getInteger ("loadtest.swap.interval", 0);
+
+        ExecutorService pool = Executors.newFixedThreadPool (threads);
+        ScheduledExecutorService swapper = Executors.newSingleThreadScheduledExecutor ();
+
+        List<Client> clients = new ArrayList<Client> ();
+        List<Future<Void>> tasks = new ArrayList<Future<Void>> ();
+
+        for (int i = 0; i < threads; i++) {
+            Client client = new Client ();
+            clients.add (client);
+            tasks.add (pool.submit (client));
+        }
+
+        System.out.println ("Warming up for " + warmup + "s with " + threads + " clients");
+        Thread.sleep (warmup * 1000L);
+
+        swaps.set (0);
+        measuring = true;
+
+        if (swapInterval > 0) {
+            swapper.scheduleAtFixedRate (new Runnable () {
+                    public void run ()
+                    {
+                        try {
+                            swapHeadingsDB ();
+                        } catch (IOException e) {
+                            e.printStackTrace ();
+                        }
+                    }
+                }, swapInterval, swapInterval, TimeUnit.SECONDS);
+        }
+
+        System.out.println ("Measuring for " + duration + "s");
+        long start = System.nanoTime ();
+        Thread.sleep (duration * 1000L);
+
+        measuring = false;
+        finished = true;
+        double elapsed = (System.nanoTime () - start) / 1000000000.0;
+
+        swapper.shutdownNow ();
+        pool.shutdown ();
+
+        for (Future<Void> task : tasks) {
+            task.get ();
+        }
+
+        int count = 0;
+        int errors = 0;
+        for (Client client : clients) {
+            count += client.count;
+            errors += client.errors;
+        }
+
+        long[] all = new long[count];
+        int pos = 0;
+        for (Client client : clients) {
+            System.arraycopy (client.latencies, 0, all, pos, client.count);
+            pos += client.count;
+        }
+        Arrays.sort (all);
+
+        System.out.println (String.format ("requests=%d errors=%d swaps=%d throughput=%.1f/s",
+                                           count, errors, swaps.get (), count / elapsed));
+        System.out.println (String.format ("latency_ms p50=%.2f p95=%.2f p99=%.2f max=%.2f",
+                                           percentile (all, 0.50),
+                                           percentile (all, 0.95),
+                                           percentile (all, 0.99),
+                                           percentile (all, 1.0)));
+    }
+
+
+    public static void main (String args[]) throws Exception
+    {
+        String dir = System.getProperty ("loadtest.dir");
+
+        LoadTest test = new LoadTest ();
+        test.home = (dir != null) ? new File (dir) : BrowseFixture.createTempDir ("browse-load");
+        test.home.mkdirs ();
+
+        try {
+            test.setUp ();
+            test.run ((args.length > 0) ? args[0] : null);
+        } finally {
+            test.tearDown ();
+
+            if (dir == null) {
+                BrowseFixture.delete (test.home);
+            }
+        }
+    }
+}
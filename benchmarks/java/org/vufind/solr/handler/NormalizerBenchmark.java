@@ -0,0 +1,30 @@
+package org.vufind.solr.handler;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.vufind.util.Normalizer;
+import org.vufind.util.NormalizerFactory;
+
+
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.SECONDS)
+@State (Scope.Thread)
+public class NormalizerBenchmark
+{
+    private Normalizer normalizer;
+
+    @Setup
+    public void setUp () throws Exception
+    {
+        normalizer = NormalizerFactory.getNormalizer ();
+    }
+
+
+    @Benchmark
+    public byte[] normalize (BrowseFixture fixture)
+    {
+        return normalizer.normalize (fixture.randomHeading ());
+    }
+}
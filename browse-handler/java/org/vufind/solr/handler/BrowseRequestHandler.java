@@ -8,10 +8,21 @@ package org.vufind.solr.handler;
 
 import org.apache.lucene.index.*;
 import org.apache.lucene.store.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 import org.apache.solr.handler.*;
 import org.apache.solr.request.*;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrEventListener;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.apache.solr.util.plugin.SolrCoreAware;
 import java.io.*;
 import java.util.*;
 import java.net.URL;
@@ -21,6 +32,18 @@ import org.vufind.util.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.document.*;
 import java.util.logging.Logger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.vufind.util.Normalizer;
@@ -46,6 +69,42 @@ class HeadingSlice
 {
     public List<String> headings = new LinkedList<String> ();
     public int total;
+
+    // The rowid of each heading, where the DB has them (merged DBs don't)
+    public List<Integer> rowids = new ArrayList<Integer> ();
+}
+
+
+
+/*
+ * An entry from a headings DB's jump table: where the headings starting
+ * with label begin, and how many there are.
+ */
+class Jump
+{
+    public String label;
+    public int rowid;
+    public int count;
+
+
+    public Jump (String label, int rowid, int count)
+    {
+        this.label = label;
+        this.rowid = rowid;
+        this.count = count;
+    }
+
+
+    public Map<String, Object> asMap ()
+    {
+        Map<String, Object> result = new HashMap<String, Object> ();
+
+        result.put ("label", label);
+        result.put ("rowid", rowid);
+        result.put ("count", count);
+
+        return result;
+    }
 }
 
 
@@ -56,8 +115,28 @@ class HeadingsDB
     String path;
     long dbVersion;
     int totalCount;
+    boolean keyIndexed;
+    boolean headingIndexed;
+    boolean hasFilterBitmaps;
     Normalizer normalizer;
 
+    // Decoded filter bitmaps, by fq
+    Map<String, HeadingBitmap> filterBitmaps = new HashMap<String, HeadingBitmap> ();
+
+    // The jump table, in the order it was built (empty if the DB has none)
+    List<Jump> jumps = new ArrayList<Jump> ();
+
+    static int PREFIX_CACHE_SIZE = 10000;
+
+    // Suggestion prefixes -> the primary part of their sort keys.  People
+    // type the same few letters a lot.
+    Map<String, byte[]> prefixKeys = new LinkedHashMap<String, byte[]> (1024, 0.75f, true) {
+        protected boolean removeEldestEntry (Map.Entry<String, byte[]> eldest)
+        {
+            return size () > PREFIX_CACHE_SIZE;
+        }
+    };
+
     ReentrantReadWriteLock dbLock = new ReentrantReadWriteLock ();
 
     public HeadingsDB (String path) throws Exception
@@ -102,6 +181,103 @@ class HeadingsDB
 
         rs.close ();
         countStmnt.close ();
+
+        // Databases built with the compact layout have no key index, and
+        // older ones have no heading index.
+        PreparedStatement indexStmnt = db.prepareStatement (
+            "select name from sqlite_master " +
+            "where type = 'index' and tbl_name = 'headings'");
+
+        rs = indexStmnt.executeQuery ();
+
+        keyIndexed = false;
+        headingIndexed = false;
+
+        while (rs.next ()) {
+            keyIndexed |= "keyindex".equals (rs.getString ("name"));
+            headingIndexed |= "headingindex".equals (rs.getString ("name"));
+        }
+
+        rs.close ();
+        indexStmnt.close ();
+
+        PreparedStatement bitmapsStmnt = db.prepareStatement (
+            "select count(1) as count from sqlite_master " +
+            "where type = 'table' and name = 'filter_bitmaps'");
+
+        rs = bitmapsStmnt.executeQuery ();
+        rs.next ();
+
+        hasFilterBitmaps = (rs.getInt ("count") > 0);
+
+        rs.close ();
+        bitmapsStmnt.close ();
+
+        synchronized (filterBitmaps) {
+            filterBitmaps.clear ();
+        }
+
+        jumps = loadJumps ();
+    }
+
+
+    // Small enough to keep in memory, so jumps need no queries.
+    private List<Jump> loadJumps () throws Exception
+    {
+        List<Jump> result = new ArrayList<Jump> ();
+
+        PreparedStatement tableStmnt = db.prepareStatement (
+            "select count(1) as count from sqlite_master " +
+            "where type = 'table' and name = 'jumps'");
+
+        ResultSet rs = tableStmnt.executeQuery ();
+        rs.next ();
+
+        boolean hasJumps = (rs.getInt ("count") > 0);
+
+        rs.close ();
+        tableStmnt.close ();
+
+        if (!hasJumps) {
+            return result;
+        }
+
+        PreparedStatement jumpStmnt = db.prepareStatement (
+            "select label, start, count from jumps order by rowid");
+
+        rs = jumpStmnt.executeQuery ();
+
+        while (rs.next ()) {
+            result.add (new Jump (rs.getString ("label"), rs.getInt ("start"),
+                                  rs.getInt ("count")));
+        }
+
+        rs.close ();
+        jumpStmnt.close ();
+
+        return result;
+    }
+
+
+    public List<Jump> getJumps ()
+    {
+        return jumps;
+    }
+
+
+    /*
+     * Where the headings for a jump table label start, or -1 if there's no
+     * such label.
+     */
+    public int getJumpStart (String label)
+    {
+        for (Jump jump : getJumps ()) {
+            if (jump.label.equals (label)) {
+                return jump.rowid;
+            }
+        }
+
+        return -1;
     }
 
 
@@ -154,66 +330,1476 @@ class HeadingsDB
 
     public int getHeadingStart (String from) throws Exception
     {
+        return getHeadingStart (normalizer.normalize (from));
+    }
+
+
+    int getHeadingStart (byte[] key) throws Exception
+    {
+        if (!keyIndexed) {
+            return findHeadingStart (key);
+        }
+
         PreparedStatement rowStmnt = db.prepareStatement (
             "select rowid from headings " +
             "where key >= ? " +
             "order by key " +
             "limit 1");
 
-        rowStmnt.setBytes (1, normalizer.normalize (from));
+        rowStmnt.setBytes (1, key);
 
         ResultSet rs = rowStmnt.executeQuery ();
 
-        if (rs.next ()) {
-            return rs.getInt ("rowid");
-        } else {
-            return totalCount + 1;   // past the end
+        try {
+            if (rs.next ()) {
+                return rs.getInt ("rowid");
+            } else {
+                return totalCount + 1;   // past the end
+            }
+        } finally {
+            rs.close ();
+            rowStmnt.close ();
         }
     }
 
 
-    public HeadingSlice getHeadings (int rowid,
+    /*
+     * Without a key index, rely on rowids following key order and binary
+     * search for the first heading whose key is >= the one we want.
+     */
+    private int findHeadingStart (byte[] key) throws Exception
+    {
+        PreparedStatement keyStmnt = db.prepareStatement (
+            "select key from headings where rowid = ?");
+
+        int low = 1;
+        int high = totalCount + 1;   // past the end
+
+        try {
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+
+                keyStmnt.setInt (1, mid);
+                ResultSet rs = keyStmnt.executeQuery ();
+                rs.next ();
+                byte[] midKey = rs.getBytes ("key");
+                rs.close ();
+
+                if (SortKeys.compare (midKey, key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+        } finally {
+            keyStmnt.close ();
+        }
+
+        return low;
+    }
+
+
+    private byte[] prefixKey (String prefix)
+    {
+        synchronized (prefixKeys) {
+            byte[] result = prefixKeys.get (prefix);
+
+            if (result == null) {
+                result = SortKeys.primaryPrefix (normalizer.normalize (prefix));
+                prefixKeys.put (prefix, result);
+            }
+
+            return result;
+        }
+    }
+
+
+    /*
+     * Up to rows headings whose sort keys start with that of prefix (ignoring
+     * case and accents, as the normalizer does).  Reads no more than rows
+     * headings from the start of the range.
+     */
+    public List<String> getSuggestions (String prefix, int rows) throws Exception
+    {
+        List<String> result = new ArrayList<String> ();
+        byte[] prefixKey = prefixKey (prefix);
+
+        if (prefixKey.length == 0 || rows <= 0) {
+            // Nothing to go on
+            return result;
+        }
+
+        PreparedStatement rowStmnt = db.prepareStatement (
+            "select key, heading from headings " +
+            "where rowid >= ? " +
+            "order by rowid " +
+            "limit ?");
+
+        rowStmnt.setInt (1, getHeadingStart (prefixKey));
+        rowStmnt.setInt (2, rows);
+
+        ResultSet rs = rowStmnt.executeQuery ();
+
+        try {
+            while (rs.next () && SortKeys.startsWith (rs.getBytes ("key"), prefixKey)) {
+                result.add (rs.getString ("heading"));
+            }
+        } finally {
+            rs.close ();
+            rowStmnt.close ();
+        }
+
+        return result;
+    }
+
+
+    /*
+     * The headings with records matching all of the given filter queries, if
+     * there are filter bitmaps for each of them.  Null otherwise.
+     */
+    public HeadingBitmap getFilterBitmap (String[] fqs) throws Exception
+    {
+        if (!hasFilterBitmaps || fqs == null || fqs.length == 0) {
+            return null;
+        }
+
+        HeadingBitmap result = null;
+
+        // Not synchronized on this, since reopenIfUpdated holds that while
+        // waiting for queries like ours to finish.
+        synchronized (filterBitmaps) {
+            for (String fq : fqs) {
+                if (!filterBitmaps.containsKey (fq)) {
+                    filterBitmaps.put (fq, loadFilterBitmap (fq));
+                }
+
+                HeadingBitmap bitmap = filterBitmaps.get (fq);
+
+                if (bitmap == null) {
+                    return null;
+                }
+
+                result = (result == null) ? bitmap : result.and (bitmap);
+            }
+        }
+
+        return result;
+    }
+
+
+    private HeadingBitmap loadFilterBitmap (String fq) throws Exception
+    {
+        PreparedStatement bitmapStmnt = db.prepareStatement (
+            "select bitmap from filter_bitmaps where filter = ?");
+
+        bitmapStmnt.setString (1, fq);
+
+        ResultSet rs = bitmapStmnt.executeQuery ();
+
+        try {
+            if (rs.next ()) {
+                return HeadingBitmap.decode (rs.getBytes ("bitmap"));
+            } else {
+                return null;
+            }
+        } finally {
+            rs.close ();
+            bitmapStmnt.close ();
+        }
+    }
+
+
+    /*
+     * Like getHeadings, but only over the headings in the filter bitmap.
+     * position counts from zero through those headings, and the total is
+     * the number of them from position on.
+     */
+    public HeadingSlice getHeadings (HeadingBitmap filter,
+                                     int position,
                                      int rows)
         throws Exception
     {
         HeadingSlice result = new HeadingSlice ();
 
+        result.total = Math.max (0, filter.count () - position);
+
+        int n = Math.min (rows, result.total);
+        if (n <= 0) {
+            return result;
+        }
+
+        StringBuilder placeholders = new StringBuilder ("?");
+        for (int i = 1; i < n; i++) {
+            placeholders.append (", ?");
+        }
+
         PreparedStatement rowStmnt = db.prepareStatement (
-            String.format ("select * from headings " +
-                           "where rowid >= ? " +
-                           "order by rowid " +
-                           "limit %d ",
-                           rows)
-            );
+            "select rowid, heading from headings " +
+            "where rowid in (" + placeholders + ") " +
+            "order by rowid");
+
+        for (int i = 0; i < n; i++) {
+            rowStmnt.setInt (i + 1, filter.select (position + i));
+        }
+
+        ResultSet rs = rowStmnt.executeQuery ();
+
+        try {
+            while (rs.next ()) {
+                result.rowids.add (rs.getInt ("rowid"));
+                result.headings.add (rs.getString ("heading"));
+            }
+        } finally {
+            rs.close ();
+            rowStmnt.close ();
+        }
+
+        return result;
+    }
+
+
+    public byte[] getKey (int rowid) throws Exception
+    {
+        PreparedStatement keyStmnt = db.prepareStatement (
+            "select key from headings where rowid = ?");
+
+        keyStmnt.setInt (1, rowid);
+
+        ResultSet rs = keyStmnt.executeQuery ();
+
+        try {
+            return rs.next () ? rs.getBytes ("key") : null;
+        } finally {
+            rs.close ();
+            keyStmnt.close ();
+        }
+    }
+
+
+    private List<BrowseEntry> readEntries (PreparedStatement stmnt) throws Exception
+    {
+        List<BrowseEntry> result = new ArrayList<BrowseEntry> ();
+
+        ResultSet rs = stmnt.executeQuery ();
+
+        try {
+            while (rs.next ()) {
+                result.add (new BrowseEntry (rs.getBytes ("key"), rs.getString ("heading")));
+            }
+        } finally {
+            rs.close ();
+            stmnt.close ();
+        }
+
+        return result;
+    }
+
+
+    /*
+     * Up to rows keys and headings starting from rowid.
+     */
+    public List<BrowseEntry> getEntries (int rowid, int rows) throws Exception
+    {
+        PreparedStatement rowStmnt = db.prepareStatement (
+            "select key, heading from headings " +
+            "where rowid >= ? " +
+            "order by rowid " +
+            "limit ?");
 
         rowStmnt.setInt (1, rowid);
+        rowStmnt.setInt (2, rows);
+
+        return readEntries (rowStmnt);
+    }
+
+
+    /*
+     * Up to rows keys and headings before rowid, working backwards.
+     */
+    public List<BrowseEntry> getEntriesBefore (int rowid, int rows) throws Exception
+    {
+        PreparedStatement rowStmnt = db.prepareStatement (
+            "select key, heading from headings " +
+            "where rowid < ? " +
+            "order by rowid desc " +
+            "limit ?");
+
+        rowStmnt.setInt (1, rowid);
+        rowStmnt.setInt (2, rows);
+
+        return readEntries (rowStmnt);
+    }
+
+
+    // Headings sharing a key are read this many at a time
+    private static final int MAX_KEY_DUPLICATES = 10;
+
+    /*
+     * The rowid of exactly this heading, or -1 if it isn't in the DB.
+     * Headings sharing its sort key are next to it, so only those are
+     * checked.
+     */
+    public int getRowid (String heading) throws Exception
+    {
+        byte[] key = normalizer.normalize (heading);
+        int rowid = getHeadingStart (key);
+
+        while (true) {
+            List<BrowseEntry> entries = getEntries (rowid, MAX_KEY_DUPLICATES);
+
+            for (BrowseEntry entry : entries) {
+                if (!Arrays.equals (entry.key, key)) {
+                    return -1;
+                }
+
+                if (entry.value.equals (heading)) {
+                    return rowid;
+                }
+
+                rowid++;
+            }
+
+            if (entries.size () < MAX_KEY_DUPLICATES) {
+                return -1;
+            }
+        }
+    }
+
+
+    /*
+     * Every heading with exactly this key.
+     */
+    public Set<String> getHeadingsWithKey (byte[] key) throws Exception
+    {
+        Set<String> result = new HashSet<String> ();
+        int rowid = getHeadingStart (key);
+
+        while (true) {
+            List<BrowseEntry> entries = getEntries (rowid, MAX_KEY_DUPLICATES);
+
+            for (BrowseEntry entry : entries) {
+                if (!Arrays.equals (entry.key, key)) {
+                    return result;
+                }
+
+                result.add (entry.value);
+                rowid++;
+            }
+
+            if (entries.size () < MAX_KEY_DUPLICATES) {
+                return result;
+            }
+        }
+    }
+
+
+    /*
+     * The page of headings offset rows from rowid.
+     */
+    public HeadingSlice getHeadings (int rowid, int offset, int rows)
+        throws Exception
+    {
+        return getHeadings (Math.max (0, rowid + offset), rows);
+    }
+
+
+    public HeadingSlice getHeadings (int rowid,
+                                     int rows)
+        throws Exception
+    {
+        HeadingSlice result = new HeadingSlice ();
+
+        PreparedStatement rowStmnt = db.prepareStatement (
+            String.format ("select rowid, heading from headings " +
+                           "where rowid >= ? " +
+                           "order by rowid " +
+                           "limit %d ",
+                           rows)
+            );
+
+        rowStmnt.setInt (1, rowid);
+
+        ResultSet rs = null;
+
+        for (int attempt = 0; attempt < 3; attempt++) {
+            try {
+                rs = rowStmnt.executeQuery ();
+                break;
+            } catch (SQLException e) {
+                Log.info ("Retry number " + attempt + "...");
+                Thread.sleep (50);
+            }
+        }
+
+        if (rs == null) {
+            return result;
+        }
+
+        while (rs.next ()) {
+            result.rowids.add (rs.getInt ("rowid"));
+            result.headings.add (rs.getString ("heading"));
+        }
+
+        rs.close ();
+        rowStmnt.close ();
+
+        result.total = (totalCount - rowid) + 1;
+
+        return result;
+    }
+}
+
+
+
+/*
+ *
+ * Several headings DBs (e.g. one per Solr core) browsed as one.
+ *
+ * The shards are merged by sort key as they're read, so each can be
+ * rebuilt on its own.  A heading in more than one shard comes out once,
+ * from the first shard that has it.  Different headings that happen to
+ * share a key all come out, as they would from a single DB.
+ *
+ * Without a combined DB there's no numbering of the distinct headings, so a
+ * rowid here is a position in the merged headings of all shards counting
+ * copies (ordered by key, then shard), which we can find from each shard's
+ * own rowids.  Offsets and the total count distinct headings from that
+ * position.  The total needs to know where all the copies are, which takes
+ * a pass over every shard, so that's done in the background whenever a
+ * shard changes.  Until it's finished, the total counts copies too.
+ *
+ */
+class MergedHeadingsDB extends HeadingsDB
+{
+    static int POSITION_CACHE_SIZE = 1000;
+
+    private List<HeadingsDB> shards;
+
+    // Rowids we've handed out -> the corresponding rowid in each shard
+    private Map<Integer, int[]> positions = new LinkedHashMap<Integer, int[]> (64, 0.75f, true) {
+        protected boolean removeEldestEntry (Map.Entry<Integer, int[]> eldest)
+        {
+            return size () > POSITION_CACHE_SIZE;
+        }
+    };
+
+    private long[] shardVersions;
+
+    // Finds copy positions for every merged DB, one at a time
+    private static final ExecutorService copyFinder =
+        Executors.newSingleThreadExecutor (new ThreadFactory () {
+                public Thread newThread (Runnable r)
+                {
+                    Thread t = new Thread (r, "browse-merged-copies");
+                    t.setDaemon (true);
+                    return t;
+                }
+            });
+
+    // The positions (as rowids) of every copy of a heading from an earlier
+    // shard, in order, as of one version of each shard.
+    private static class CopyPositions
+    {
+        long[] versions;
+        int[] positions;
+    }
+
+    private volatile CopyPositions copyPositions;
+    private AtomicBoolean copiesPending = new AtomicBoolean ();
+
+
+    public MergedHeadingsDB (List<String> paths, String normalizerClassName)
+        throws Exception
+    {
+        super (paths.toString (), normalizerClassName);
+
+        shards = new ArrayList<HeadingsDB> ();
+        for (String path : paths) {
+            shards.add (new HeadingsDB (path, normalizerClassName));
+        }
+
+        shardVersions = new long[shards.size ()];
+    }
+
+
+    /*
+     * Takes a read lock on every shard, which queryFinished releases.
+     */
+    public synchronized void reopenIfUpdated () throws Exception
+    {
+        Exception failure = null;
+
+        for (HeadingsDB shard : shards) {
+            if (failure != null) {
+                // Keep the locking even for queryFinished
+                shard.dbLock.readLock ().lock ();
+                continue;
+            }
+
+            try {
+                shard.reopenIfUpdated ();
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+
+        boolean changed = false;
+        for (int i = 0; i < shards.size (); i++) {
+            if (shardVersions[i] != shards.get (i).dbVersion) {
+                shardVersions[i] = shards.get (i).dbVersion;
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            synchronized (positions) {
+                positions.clear ();
+            }
+
+            findCopies ();
+        }
+    }
+
+
+    public void queryFinished ()
+    {
+        for (HeadingsDB shard : shards) {
+            shard.queryFinished ();
+        }
+    }
+
+
+    private int rowidFor (int[] starts)
+    {
+        int result = 1;
+        for (int start : starts) {
+            result += start - 1;
+        }
+
+        synchronized (positions) {
+            positions.put (result, starts.clone ());
+        }
+
+        return result;
+    }
+
+
+    public int getHeadingStart (String from) throws Exception
+    {
+        byte[] key = normalizer.normalize (from);
+
+        int[] starts = new int[shards.size ()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = shards.get (i).getHeadingStart (key);
+        }
+
+        return rowidFor (starts);
+    }
+
+
+    // The number of headings in all shards that come before the heading at
+    // rowid in shard j.
+    private long before (int j, byte[] key, int rowid) throws Exception
+    {
+        long result = rowid - 1;
+
+        // The smallest key greater than this one
+        byte[] after = Arrays.copyOf (key, key.length + 1);
+
+        for (int i = 0; i < shards.size (); i++) {
+            if (i != j) {
+                result += shards.get (i).getHeadingStart ((i < j) ? after : key) - 1;
+            }
+        }
+
+        return result;
+    }
+
+
+    /*
+     * The rowid in each shard corresponding to one of ours.  Usually one we
+     * handed out, but if not, find the heading with rowid - 1 headings
+     * before it by binary searching each shard in turn.
+     */
+    private int[] seek (int rowid) throws Exception
+    {
+        synchronized (positions) {
+            int[] cached = positions.get (rowid);
+            if (cached != null) {
+                return cached.clone ();
+            }
+        }
+
+        int[] starts = new int[shards.size ()];
+        long target = Math.max (0, rowid - 1);
+
+        long total = 0;
+        for (HeadingsDB shard : shards) {
+            total += shard.totalCount;
+        }
+
+        if (target >= total) {
+            for (int i = 0; i < starts.length; i++) {
+                starts[i] = shards.get (i).totalCount + 1;
+            }
+
+            return starts;
+        }
+
+        for (int j = 0; j < shards.size (); j++) {
+            HeadingsDB shard = shards.get (j);
+
+            // The last heading in this shard with no more than target
+            // headings before it.
+            int low = 0;
+            int high = shard.totalCount;
+
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+
+                if (before (j, shard.getKey (mid), mid) <= target) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            if (low == 0) {
+                continue;
+            }
+
+            byte[] key = shard.getKey (low);
+
+            if (before (j, key, low) == target) {
+                byte[] after = Arrays.copyOf (key, key.length + 1);
+
+                for (int i = 0; i < starts.length; i++) {
+                    if (i == j) {
+                        starts[i] = low;
+                    } else {
+                        starts[i] = shards.get (i).getHeadingStart ((i < j) ? after : key);
+                    }
+                }
+
+                return starts;
+            }
+        }
+
+        throw new Exception ("Couldn't find merged heading " + rowid);
+    }
+
+
+    // A shard's headings, read a batch at a time in one direction.
+    private class Cursor
+    {
+        int shard;
+        boolean forwards;
+        int batchSize;
+
+        // The next rowid going forwards, or the one after the next going
+        // backwards.  Either way, where a forward read would start.
+        int position;
+
+        List<BrowseEntry> batch = Collections.emptyList ();
+        int index = 0;
+
+        Cursor (int shard, int position, boolean forwards, int batchSize)
+        {
+            this.shard = shard;
+            this.position = position;
+            this.forwards = forwards;
+            this.batchSize = batchSize;
+        }
+
+        BrowseEntry peek () throws Exception
+        {
+            if (index == batch.size ()) {
+                HeadingsDB db = shards.get (shard);
+                batch = forwards ?
+                    db.getEntries (position, batchSize) :
+                    db.getEntriesBefore (position, batchSize);
+                index = 0;
+
+                if (batch.isEmpty ()) {
+                    return null;
+                }
+            }
+
+            return batch.get (index);
+        }
+
+        void advance ()
+        {
+            index++;
+            position += forwards ? 1 : -1;
+        }
+    }
+
+
+    private PriorityQueue<Cursor> cursors (int[] starts, final boolean forwards, int batchSize)
+        throws Exception
+    {
+        PriorityQueue<Cursor> result = new PriorityQueue<Cursor>
+            (starts.length,
+             new Comparator<Cursor> () {
+                public int compare (Cursor a, Cursor b)
+                {
+                    try {
+                        int cmp = SortKeys.compare (a.peek ().key, b.peek ().key);
+                        if (cmp == 0) {
+                            cmp = a.shard - b.shard;
+                        }
+
+                        return forwards ? cmp : -cmp;
+                    } catch (Exception e) {
+                        throw new RuntimeException (e);
+                    }
+                }
+            });
+
+        for (int i = 0; i < starts.length; i++) {
+            Cursor cursor = new Cursor (i, starts[i], forwards, batchSize);
+            if (cursor.peek () != null) {
+                result.add (cursor);
+            }
+        }
+
+        return result;
+    }
+
+
+    /*
+     * Which headings are copies of ones in earlier shards, wherever a read
+     * starts and whichever way it goes.  Only headings with the same key
+     * can be copies, so each key's headings are looked up once per shard.
+     */
+    private class Copies
+    {
+        private byte[] key;
+        private Map<Integer, Set<String>> headings = new HashMap<Integer, Set<String>> ();
+
+        boolean isCopy (Cursor cursor, BrowseEntry entry) throws Exception
+        {
+            if (key == null || SortKeys.compare (entry.key, key) != 0) {
+                key = entry.key;
+                headings.clear ();
+            }
+
+            for (int i = 0; i < cursor.shard; i++) {
+                Set<String> shardHeadings = headings.get (i);
+
+                if (shardHeadings == null) {
+                    shardHeadings = shards.get (i).getHeadingsWithKey (key);
+                    headings.put (i, shardHeadings);
+                }
+
+                if (shardHeadings.contains (entry.value)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+
+    /*
+     * Move starts over n distinct headings (backwards for negative n).
+     */
+    private void skip (int[] starts, int n) throws Exception
+    {
+        if (n == 0) {
+            return;
+        }
+
+        int distinct = Math.abs (n);
+        PriorityQueue<Cursor> queue = cursors (starts, n > 0, Math.min (distinct, 1000) + 1);
+
+        Copies copies = new Copies ();
+        int seen = 0;
+
+        while (!queue.isEmpty ()) {
+            Cursor cursor = queue.poll ();
+            BrowseEntry entry = cursor.peek ();
+
+            if (!copies.isCopy (cursor, entry)) {
+                if (seen == distinct) {
+                    queue.add (cursor);
+                    break;
+                }
+
+                seen++;
+            }
+
+            cursor.advance ();
+
+            if (cursor.peek () != null) {
+                queue.add (cursor);
+            }
+        }
+
+        for (Cursor cursor : queue) {
+            starts[cursor.shard] = cursor.position;
+        }
+
+        // Shards we ran off the end (or start) of
+        for (int i = 0; i < starts.length; i++) {
+            boolean found = false;
+            for (Cursor cursor : queue) {
+                found |= (cursor.shard == i);
+            }
+
+            if (!found) {
+                starts[i] = (n > 0) ? shards.get (i).totalCount + 1 : 1;
+            }
+        }
+    }
+
+
+    /*
+     * Up to rows distinct headings from starts, stopping at the first whose
+     * key doesn't start with prefix (if given).
+     */
+    private List<String> read (int[] starts, int rows, byte[] prefix) throws Exception
+    {
+        List<String> result = new ArrayList<String> ();
+
+        if (rows <= 0) {
+            return result;
+        }
+
+        PriorityQueue<Cursor> queue = cursors (starts, true, rows);
+        Copies copies = new Copies ();
+
+        while (!queue.isEmpty ()) {
+            Cursor cursor = queue.poll ();
+            BrowseEntry entry = cursor.peek ();
+
+            if (prefix != null && !SortKeys.startsWith (entry.key, prefix)) {
+                break;
+            }
+
+            if (!copies.isCopy (cursor, entry)) {
+                if (result.size () == rows) {
+                    break;
+                }
+
+                result.add (entry.value);
+            }
+
+            cursor.advance ();
+
+            if (cursor.peek () != null) {
+                queue.add (cursor);
+            }
+        }
+
+        return result;
+    }
+
+
+    // A shard's headings in rowid order, read through one cursor
+    private static class ShardReader
+    {
+        int shard;
+        Statement stmt;
+        ResultSet rs;
+        byte[] key;
+        String heading;
+
+        ShardReader (int shard, Connection db) throws Exception
+        {
+            this.shard = shard;
+            stmt = db.createStatement ();
+            rs = stmt.executeQuery ("select key, heading from headings order by rowid");
+        }
+
+        boolean advance () throws Exception
+        {
+            if (!rs.next ()) {
+                return false;
+            }
+
+            key = rs.getBytes ("key");
+            heading = rs.getString ("heading");
+
+            return true;
+        }
+    }
+
+
+    /*
+     * Start finding the copy positions for the shards' current versions, if
+     * we aren't already.
+     */
+    private void findCopies ()
+    {
+        if (!copiesPending.compareAndSet (false, true)) {
+            return;
+        }
+
+        final List<String> paths = new ArrayList<String> ();
+        for (HeadingsDB shard : shards) {
+            paths.add (shard.path);
+        }
+
+        try {
+            copyFinder.submit (new Runnable () {
+                    public void run ()
+                    {
+                        try {
+                            long start = System.currentTimeMillis ();
+
+                            copyPositions = copyPositions (paths);
+
+                            Log.info ("Found copies for " + paths + " in " +
+                                      (System.currentTimeMillis () - start) + "ms");
+                        } catch (Exception e) {
+                            Log.info ("Failed to find copies for " + paths + ": " + e);
+                        } finally {
+                            copiesPending.set (false);
+                        }
+                    }
+                });
+        } catch (RejectedExecutionException e) {
+            copiesPending.set (false);
+        }
+    }
+
+
+    /*
+     * Going through every shard from the start, the copies are just the
+     * headings we've already seen from an earlier shard under the same key,
+     * so this is one pass without any lookups.  It uses its own
+     * connections, so a shard swapped meanwhile leaves it out of date
+     * rather than holding the swap up.
+     */
+    private static CopyPositions copyPositions (List<String> paths) throws Exception
+    {
+        CopyPositions result = new CopyPositions ();
+        result.versions = new long[paths.size ()];
+
+        List<Connection> dbs = new ArrayList<Connection> ();
+        List<ShardReader> readers = new ArrayList<ShardReader> ();
+
+        Class.forName ("org.sqlite.JDBC");
+
+        try {
+            PriorityQueue<ShardReader> queue = new PriorityQueue<ShardReader>
+                (paths.size (),
+                 new Comparator<ShardReader> () {
+                    public int compare (ShardReader a, ShardReader b)
+                    {
+                        int cmp = SortKeys.compare (a.key, b.key);
+                        return (cmp == 0) ? (a.shard - b.shard) : cmp;
+                    }
+                });
+
+            for (int i = 0; i < paths.size (); i++) {
+                // Taken before we open it, as for HeadingCounts
+                result.versions[i] = new File (paths.get (i)).lastModified ();
+
+                Connection db = DriverManager.getConnection ("jdbc:sqlite:" + paths.get (i));
+                dbs.add (db);
+
+                ShardReader reader = new ShardReader (i, db);
+                readers.add (reader);
+
+                if (reader.advance ()) {
+                    queue.add (reader);
+                }
+            }
+
+            int[] positions = new int[64];
+            int count = 0;
+
+            byte[] key = null;
+            Map<String, Integer> firstShard = new HashMap<String, Integer> ();
+            int position = 1;
+
+            while (!queue.isEmpty ()) {
+                ShardReader reader = queue.poll ();
+
+                if (key == null || SortKeys.compare (reader.key, key) != 0) {
+                    key = reader.key;
+                    firstShard.clear ();
+                }
+
+                Integer first = firstShard.get (reader.heading);
+
+                if (first == null) {
+                    firstShard.put (reader.heading, reader.shard);
+                } else if (first < reader.shard) {
+                    if (count == positions.length) {
+                        positions = Arrays.copyOf (positions, count * 2);
+                    }
+
+                    positions[count++] = position;
+                }
+
+                position++;
+
+                if (reader.advance ()) {
+                    queue.add (reader);
+                }
+            }
+
+            result.positions = Arrays.copyOf (positions, count);
+
+            return result;
+        } finally {
+            for (ShardReader reader : readers) {
+                reader.rs.close ();
+                reader.stmt.close ();
+            }
+
+            for (Connection db : dbs) {
+                db.close ();
+            }
+        }
+    }
+
+
+    // The number of distinct headings from starts to the end, or of all
+    // headings if we don't know where the copies are yet
+    private int distinctFrom (int[] starts) throws Exception
+    {
+        int position = 1;
+        int remaining = 0;
+
+        for (int i = 0; i < starts.length; i++) {
+            position += starts[i] - 1;
+            remaining += shards.get (i).totalCount - starts[i] + 1;
+        }
+
+        CopyPositions copies = copyPositions;
+
+        for (int i = 0; copies != null && i < shards.size (); i++) {
+            if (copies.versions[i] != shards.get (i).dbVersion) {
+                copies = null;
+            }
+        }
+
+        if (copies == null) {
+            // Not found yet (or found for shards since swapped).  Count the
+            // copies for now.
+            findCopies ();
+            return remaining;
+        }
+
+        int before = Arrays.binarySearch (copies.positions, position);
+
+        if (before < 0) {
+            before = -(before + 1);
+        }
+
+        return remaining - (copies.positions.length - before);
+    }
+
+
+    public HeadingSlice getHeadings (int rowid, int rows) throws Exception
+    {
+        return getHeadings (rowid, 0, rows);
+    }
+
+
+    public HeadingSlice getHeadings (int rowid, int offset, int rows) throws Exception
+    {
+        int[] starts = seek (rowid);
+        skip (starts, offset);
+
+        HeadingSlice result = new HeadingSlice ();
+        result.headings.addAll (read (starts, rows, null));
+        result.total = distinctFrom (starts);
+
+        return result;
+    }
+
+
+    public List<String> getSuggestions (String prefix, int rows) throws Exception
+    {
+        byte[] prefixKey = SortKeys.primaryPrefix (normalizer.normalize (prefix));
+
+        if (prefixKey.length == 0) {
+            return new ArrayList<String> ();
+        }
+
+        int[] starts = new int[shards.size ()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = shards.get (i).getHeadingStart (prefixKey);
+        }
+
+        return read (starts, rows, prefixKey);
+    }
+
+
+    // Filter bitmaps belong to a single DB's rowids
+    public HeadingBitmap getFilterBitmap (String[] fqs) throws Exception
+    {
+        return null;
+    }
+
+
+    public int getRowid (String heading) throws Exception
+    {
+        return -1;
+    }
+
+
+    /*
+     * The jump tables of all the DBs added together, for the labels they
+     * all have.  As with getHeadingStart, a label's rowid is the number of
+     * headings before it in every DB, plus one.
+     */
+    public List<Jump> getJumps ()
+    {
+        List<Jump> result = new ArrayList<Jump> ();
+
+        for (Jump first : shards.get (0).getJumps ()) {
+            Jump merged = new Jump (first.label, 1, 0);
+
+            for (HeadingsDB shard : shards) {
+                Jump jump = null;
+                for (Jump candidate : shard.getJumps ()) {
+                    if (candidate.label.equals (first.label)) {
+                        jump = candidate;
+                        break;
+                    }
+                }
+
+                if (jump == null) {
+                    merged = null;
+                    break;
+                }
+
+                merged.rowid += jump.rowid - 1;
+                merged.count += jump.count;
+            }
+
+            if (merged != null) {
+                result.add (merged);
+            }
+        }
+
+        return result;
+    }
+}
+
+
+
+/*
+ *
+ * Counts the live bib records for headings, one at a time, by seeking
+ * through a field's terms.  Seeks in term order walk the terms once, but
+ * any order works.
+ *
+ */
+class TermCounter
+{
+    private TermsEnum tenum;
+    private Bits liveDocs;
+    private DocsEnum docs;
+    private boolean atEnd;
+
+
+    public TermCounter (IndexReader reader, String field) throws IOException
+    {
+        Terms terms = MultiFields.getTerms (reader, field);
+
+        if (terms != null) {
+            tenum = terms.iterator (null);
+            liveDocs = MultiFields.getLiveDocs (reader);
+        }
+
+        atEnd = (tenum == null);
+    }
+
+
+    /*
+     * Whether the last heading counted was past every term, so that any
+     * later one (in term order) has no records either.
+     */
+    public boolean isAtEnd ()
+    {
+        return atEnd;
+    }
+
+
+    public int count (byte[] heading) throws IOException
+    {
+        if (tenum == null) {
+            return 0;
+        }
+
+        TermsEnum.SeekStatus status = tenum.seekCeil (new BytesRef (heading));
+        atEnd = (status == TermsEnum.SeekStatus.END);
+
+        // Non-preferred authority headings aren't in the bib data
+        if (status != TermsEnum.SeekStatus.FOUND) {
+            return 0;
+        }
+
+        if (liveDocs == null) {
+            return tenum.docFreq ();
+        }
+
+        docs = tenum.docs (liveDocs, docs, DocsEnum.FLAG_NONE);
+
+        int count = 0;
+        while (docs.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+            count++;
+        }
+
+        return count;
+    }
+}
+
+
+
+/*
+ *
+ * The number of live bib records for every heading in a headings DB,
+ * indexed by rowid, as of one bib index reader.  These are built in the
+ * background for each new searcher, so that counts for unfiltered
+ * requests are array reads rather than searches.
+ *
+ */
+class HeadingCounts
+{
+    IndexReader reader;
+    long dbVersion;
+    private int[] counts;
+
+
+    public HeadingCounts (IndexReader reader, String field, String dbPath)
+        throws Exception
+    {
+        this.reader = reader;
+
+        // Taken before we open it: if the DB is swapped underneath us, we
+        // end up looking out of date rather than wrongly current.
+        dbVersion = new File (dbPath).lastModified ();
+
+        Class.forName ("org.sqlite.JDBC");
+        Connection db = DriverManager.getConnection ("jdbc:sqlite:" + dbPath);
+
+        try {
+            count (db, field);
+        } finally {
+            db.close ();
+        }
+    }
+
+
+    private void count (Connection db, String field) throws Exception
+    {
+        Statement stmt = db.createStatement ();
+
+        try {
+            // Without the index, SQLite would sort the whole table for us
+            ResultSet rs = stmt.executeQuery ("select count(1) as count from sqlite_master " +
+                                              "where type = 'index' and name = 'headingindex'");
+            rs.next ();
+            boolean indexed = (rs.getInt ("count") > 0);
+            rs.close ();
+
+            if (!indexed) {
+                throw new Exception ("Headings DB has no heading index.  " +
+                                     "Rebuild it to count records per heading.");
+            }
+
+            rs = stmt.executeQuery ("select max(rowid) as max from headings");
+            rs.next ();
+            counts = new int[rs.getInt ("max") + 1];
+            rs.close ();
+
+            TermCounter counter = new TermCounter (reader, field);
+
+            // Sort keys don't sort the same way as terms, but the headings
+            // themselves do (as bytes), so with the headings in that order
+            // the seeks walk the terms once.  The heading index has them in
+            // that order already.
+            rs = stmt.executeQuery ("select rowid, heading from headings order by heading");
+
+            while (rs.next () && !counter.isAtEnd ()) {
+                counts[rs.getInt ("rowid")] = counter.count (rs.getBytes ("heading"));
+            }
+
+            rs.close ();
+        } finally {
+            stmt.close ();
+        }
+    }
+
+
+    public boolean isFor (IndexReader reader, long dbVersion)
+    {
+        return (this.reader == reader && this.dbVersion == dbVersion);
+    }
+
+
+    /*
+     * Whether these counts are for an earlier version of the DB, or of the
+     * index, than other's.
+     */
+    public boolean isOlderThan (HeadingCounts other)
+    {
+        if (dbVersion != other.dbVersion) {
+            return dbVersion < other.dbVersion;
+        }
+
+        if (reader instanceof DirectoryReader && other.reader instanceof DirectoryReader) {
+            return (((DirectoryReader) reader).getVersion () <
+                    ((DirectoryReader) other.reader).getVersion ());
+        }
+
+        return false;
+    }
+
+
+    /*
+     * Whether these are the counts for reader's records and the version of
+     * headingsDB currently open.
+     */
+    public boolean isCurrent (IndexReader reader, HeadingsDB headingsDB)
+    {
+        return isFor (reader, headingsDB.dbVersion);
+    }
+
+
+    public int count (int rowid)
+    {
+        return (rowid > 0 && rowid < counts.length) ? counts[rowid] : 0;
+    }
+}
+
+
+
+/*
+ *
+ * Every heading of a headings DB in order, with its record count, read
+ * through a single cursor.  Items are only read as they're asked for, so
+ * a response writer can stream them out without the whole list being in
+ * memory.  Counts come from a HeadingCounts if there's one for the DB and
+ * index being exported, and are otherwise counted row by row.  Closes its
+ * connection once it reaches the end (or when closed), and then releases
+ * the permit it was given, if any.
+ *
+ */
+class HeadingExport implements Iterator<Map<String, Object>>, Closeable
+{
+    private Connection db;
+    private Statement stmt;
+    private ResultSet rs;
+    private HeadingCounts counts;
+    private TermCounter counter;
+    private Semaphore permit;
+
+    private Map<String, Object> next;
+
+
+    /*
+     * One of counts and counter is needed.
+     */
+    public HeadingExport (Connection db, HeadingCounts counts, TermCounter counter)
+        throws Exception
+    {
+        this.db = db;
+        this.counts = counts;
+        this.counter = counter;
+
+        stmt = db.createStatement ();
+        rs = stmt.executeQuery ("select rowid, heading from headings order by rowid");
+
+        advance ();
+    }
+
+
+    private void advance ()
+    {
+        try {
+            if (rs != null && rs.next ()) {
+                int rowid = rs.getInt ("rowid");
+
+                byte[] heading = rs.getBytes ("heading");
+
+                next = new HashMap<String, Object> ();
+                next.put ("rowid", rowid);
+                next.put ("heading", new String (heading, "UTF-8"));
+                next.put ("count", (counts != null) ?
+                          counts.count (rowid) : counter.count (heading));
+            } else {
+                next = null;
+                close ();
+            }
+        } catch (Exception e) {
+            next = null;
+            close ();
+            throw new RuntimeException ("Failed to read headings", e);
+        }
+    }
+
+
+    public boolean hasNext ()
+    {
+        return (next != null);
+    }
+
+
+    public Map<String, Object> next ()
+    {
+        if (next == null) {
+            throw new NoSuchElementException ();
+        }
+
+        Map<String, Object> result = next;
+        advance ();
+
+        return result;
+    }
+
+
+    public void remove ()
+    {
+        throw new UnsupportedOperationException ();
+    }
+
+
+    /*
+     * Release permit on close, so that an export streamed out after its
+     * request has returned still counts against the source's limit.
+     */
+    public synchronized void releaseOnClose (Semaphore permit)
+    {
+        this.permit = permit;
+    }
 
-        ResultSet rs = null;
 
-        for (int attempt = 0; attempt < 3; attempt++) {
-            try {
-                rs = rowStmnt.executeQuery ();
-                break;
-            } catch (SQLException e) {
-                Log.info ("Retry number " + attempt + "...");
-                Thread.sleep (50);
-            }
+    public synchronized void close ()
+    {
+        if (permit != null) {
+            permit.release ();
+            permit = null;
         }
 
-        if (rs == null) {
-            return result;
+        if (db == null) {
+            return;
         }
 
-        while (rs.next ()) {
-            result.headings.add (rs.getString ("heading"));
+        try {
+            rs.close ();
+            stmt.close ();
+            db.close ();
+        } catch (SQLException e) {
+            Log.info ("Failed to close export cursor: " + e);
         }
 
-        rs.close ();
-        rowStmnt.close ();
-
-        result.total = (totalCount - rowid) + 1;
-
-        return result;
+        rs = null;
+        db = null;
     }
 }
 
@@ -291,6 +1877,37 @@ class LuceneDB
     }
 
 
+    /*
+     * Up to max of the live docs containing term, with just the given
+     * stored fields loaded.  The postings are read directly, so there's no
+     * scoring or collecting of hits.
+     */
+    public List<Document> getDocuments (Term term, int max, Set<String> fields)
+        throws Exception
+    {
+        IndexReader reader = searcher.getIndexReader ();
+        List<Document> result = new ArrayList<Document> ();
+
+        DocsEnum docs = MultiFields.getTermDocsEnum (reader,
+                                                     MultiFields.getLiveDocs (reader),
+                                                     term.field (),
+                                                     term.bytes (),
+                                                     DocsEnum.FLAG_NONE);
+
+        if (docs == null) {
+            return result;
+        }
+
+        int doc;
+        while (result.size () < max &&
+               (doc = docs.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+            result.add (reader.document (doc, fields));
+        }
+
+        return result;
+    }
+
+
     public synchronized void reopenIfUpdated () throws Exception
     {
         if (isDBUpdated ()) {
@@ -317,6 +1934,11 @@ class AuthDB
     private String seeAlsoHeadingField;
     private String scopeNoteField;
 
+    // The stored fields we read from authority records.  They can have a
+    // lot more (e.g. the full MARC record).
+    private Set<String> authorityFields;
+    private Set<String> preferredFields;
+
     public AuthDB (String path,
                    String preferredField,
                    String useInsteadField,
@@ -329,6 +1951,14 @@ class AuthDB
         useInsteadHeadingField = useInsteadField;
         seeAlsoHeadingField = seeAlsoField;
         scopeNoteField = noteField;
+
+        authorityFields = new HashSet<String> ();
+        authorityFields.add (preferredHeadingField);
+        authorityFields.add (seeAlsoHeadingField);
+        authorityFields.add (scopeNoteField);
+
+        preferredFields = new HashSet<String> ();
+        preferredFields.add (preferredHeadingField);
     }
 
 
@@ -350,35 +1980,29 @@ class AuthDB
     }
 
 
+    /*
+     * The authority record for heading, with just its preferred heading,
+     * see also and scope note fields loaded.
+     */
     public Document getAuthorityRecord (String heading)
         throws Exception
     {
-        TopDocs results = (db.search (new TermQuery (new Term (preferredHeadingField,
-                                                               heading)),
-                                      1));
+        List<Document> results = db.getDocuments (new Term (preferredHeadingField, heading),
+                                                  1, authorityFields);
 
-        if (results.totalHits > 0) {
-            return db.getDocument (results.scoreDocs[0].doc);
-        } else {
-            return null;
-        }
+        return results.isEmpty () ? null : results.get (0);
     }
 
 
+    /*
+     * The records that heading is a non-preferred form of, with just their
+     * preferred headings loaded.
+     */
     public List<Document> getPreferredHeadings (String heading)
         throws Exception
     {
-        TopDocs results = (db.search (new TermQuery (new Term (useInsteadHeadingField,
-                                                               heading)),
-                                      MAX_PREFERRED_HEADINGS));
-
-        List<Document> result = new Vector<Document> ();
-
-        for (int i = 0; i < results.totalHits; i++) {
-            result.add (db.getDocument (results.scoreDocs[i].doc));
-        }
-
-        return result;
+        return db.getDocuments (new Term (useInsteadHeadingField, heading),
+                                MAX_PREFERRED_HEADINGS, preferredFields);
     }
 
 
@@ -428,11 +2052,48 @@ class BibDB
 {
     private IndexSearcher db;
     private String field;
+    private Filter filter;
+
+    // For subclasses with their own way of finding records
+    BibDB ()
+    {
+    }
+
 
     public BibDB (IndexSearcher searcher, String field) throws Exception
+    {
+        this (searcher, field, null);
+    }
+
+
+    /*
+     * Only count and return the records in the given DocSet (e.g. those
+     * matching the request's filter queries).  A null DocSet means no
+     * restriction.
+     */
+    public BibDB (IndexSearcher searcher, String field, DocSet docs) throws Exception
     {
         db = searcher;
         this.field = field;
+
+        if (docs != null) {
+            filter = docs.getTopFilter ();
+        }
+    }
+
+
+    /*
+     * The index searched, or null if there's more than one.
+     */
+    public IndexReader getReader ()
+    {
+        return (db != null) ? db.getIndexReader () : null;
+    }
+
+
+    public boolean isFiltered ()
+    {
+        return (filter != null);
     }
 
 
@@ -444,7 +2105,7 @@ class BibDB
         Log.info ("Searching '" + field + "' for '" + "'" + heading + "'");
 
         TotalHitCountCollector counter = new TotalHitCountCollector();
-        db.search (q, counter);
+        db.search (q, filter, counter);
 
         Log.info ("Hits: " + counter.getTotalHits ());
 
@@ -457,7 +2118,7 @@ class BibDB
      * Function to retireve the doc ids when there is a building limit
      * This retrieves the doc ids for an individual heading
      *
-     * Need to add a filter query to limit the results from Solr
+     * Only records passing this BibDB's filter (if any) are included.
      *
      * I think this is where we would add the functionality to retrieve additional info
      * like titles for call numbers, possibly ISBNs
@@ -469,6 +2130,26 @@ class BibDB
      */
     public Map<String, List<Collection<String>>> matchingIDs (String heading, String extras)
         throws Exception
+    {
+        return matchingIDs (heading, extras, Integer.MAX_VALUE, 0);
+    }
+
+
+    // Thrown from a Collector to stop the search early
+    private static class StopCollecting extends RuntimeException
+    {
+    }
+
+
+    /*
+     * As above, but stop once there are maxIds records, or the deadline (in
+     * ms, or 0 for none) has passed, rather than walking every record with
+     * the heading.
+     */
+    public Map<String, List<Collection<String>>> matchingIDs (String heading, String extras,
+                                                              final int maxIds,
+                                                              final long deadline)
+        throws Exception
     {
         TermQuery q = new TermQuery (new Term (field, heading));
 
@@ -482,7 +2163,24 @@ class BibDB
             bibinfo.put (bibExtras[i], new ArrayList<Collection<String>> ());
         }
 
-        db.search (q, new Collector () {
+        try {
+            collectIDs (q, bibinfo, bibExtras, maxIds, deadline);
+        } catch (StopCollecting e) {
+            // Got as many as we're allowed
+        }
+
+        return bibinfo;
+    }
+
+
+    private void collectIDs (TermQuery q,
+                             final Map<String, List<Collection<String>>> bibinfo,
+                             final String[] bibExtras,
+                             final int maxIds,
+                             final long deadline)
+        throws Exception
+    {
+        db.search (q, filter, new Collector () {
                 private int docBase;
 
                 public void setScorer (Scorer scorer) {
@@ -493,6 +2191,11 @@ class BibDB
                 }
 
                 public void collect (int docnum) {
+                    if (bibinfo.get ("ids").size () >= maxIds ||
+                        (deadline > 0 && System.currentTimeMillis () > deadline)) {
+                        throw new StopCollecting ();
+                    }
+
                     int docid = docnum + docBase;
                     try {
                         Document doc = db.getIndexReader ().document (docid);
@@ -526,8 +2229,68 @@ class BibDB
                     this.docBase = context.docBase;
                 }
             });
+    }
+}
 
-        return bibinfo;
+
+
+/*
+ *
+ * Several biblio dbs (e.g. one per Solr core) searched as one.  Counts
+ * are summed and ids and extras gathered from each in turn.
+ *
+ */
+class MergedBibDB extends BibDB
+{
+    private List<BibDB> shards;
+
+    public MergedBibDB (List<BibDB> shards)
+    {
+        this.shards = shards;
+    }
+
+
+    public int recordCount (String heading)
+        throws Exception
+    {
+        int result = 0;
+
+        for (BibDB shard : shards) {
+            result += shard.recordCount (heading);
+        }
+
+        return result;
+    }
+
+
+    public Map<String, List<Collection<String>>> matchingIDs (String heading, String extras,
+                                                              int maxIds, long deadline)
+        throws Exception
+    {
+        Map<String, List<Collection<String>>> result = null;
+
+        for (BibDB shard : shards) {
+            int remaining = (result == null) ? maxIds : maxIds - result.get ("ids").size ();
+
+            if (remaining <= 0) {
+                break;
+            }
+
+            Map<String, List<Collection<String>>> bibinfo = shard.matchingIDs (heading, extras,
+                                                                               remaining,
+                                                                               deadline);
+
+            if (result == null) {
+                result = bibinfo;
+                continue;
+            }
+
+            for (Map.Entry<String, List<Collection<String>>> entry : bibinfo.entrySet ()) {
+                result.get (entry.getKey ()).addAll (entry.getValue ());
+            }
+        }
+
+        return result;
     }
 }
 
@@ -536,15 +2299,24 @@ class BibDB
 class BrowseList
 {
     public int totalCount;
+
+    // Set if we ran out of time before filling in every item
+    public boolean partial;
     public List<BrowseItem> items = new LinkedList<BrowseItem> ();
 
 
     public List<Map<String, Object>> asMap ()
+    {
+        return asMap (BrowseItem.FIELDS);
+    }
+
+
+    public List<Map<String, Object>> asMap (Set<String> fields)
     {
         List<Map<String, Object>> result = new LinkedList<Map<String, Object>> ();
 
         for (BrowseItem item : items) {
-            result.add (item.asMap ());
+            result.add (item.asMap (fields));
         }
 
         return result;
@@ -555,6 +2327,12 @@ class BrowseList
 
 class BrowseItem
 {
+    // Everything an item can have, and what requests get by default
+    static final Set<String> FIELDS =
+        Collections.unmodifiableSet (new LinkedHashSet<String> (Arrays.asList
+                                                                ("heading", "count", "ids", "extras",
+                                                                 "seeAlso", "useInstead", "note")));
+
     public List<String> seeAlso = new LinkedList<String> ();
     public List<String> useInstead = new LinkedList<String> ();
     public String note = "";
@@ -580,16 +2358,39 @@ class BrowseItem
     }
 
     public Map<String, Object> asMap ()
+    {
+        return asMap (FIELDS);
+    }
+
+
+    /*
+     * Just the given fields (which are all that were populated).
+     */
+    public Map<String, Object> asMap (Set<String> fields)
     {
         Map<String, Object> result = new HashMap<String, Object> ();
 
-        result.put ("heading", heading);
-        result.put ("seeAlso", seeAlso);
-        result.put ("useInstead", useInstead);
-        result.put ("note", note);
-        result.put ("count", new Integer (count));
-        result.put ("ids", ids);
-        result.put ("extras", extras);
+        if (fields.contains ("heading")) {
+            result.put ("heading", heading);
+        }
+        if (fields.contains ("seeAlso")) {
+            result.put ("seeAlso", seeAlso);
+        }
+        if (fields.contains ("useInstead")) {
+            result.put ("useInstead", useInstead);
+        }
+        if (fields.contains ("note")) {
+            result.put ("note", note);
+        }
+        if (fields.contains ("count")) {
+            result.put ("count", new Integer (count));
+        }
+        if (fields.contains ("ids")) {
+            result.put ("ids", ids);
+        }
+        if (fields.contains ("extras")) {
+            result.put ("extras", extras);
+        }
 
         return result;
     }
@@ -598,91 +2399,320 @@ class BrowseItem
 
 
 
-class Browse
-{
-    private HeadingsDB headingsDB;
-    private AuthDB authDB;
-    private BibDB bibDB;
+class Browse
+{
+    private HeadingsDB headingsDB;
+    private AuthDB authDB;
+    private volatile HeadingCounts counts;
+
+    // Held while building counts, so that only one build runs at a time
+    private final Object countsLock = new Object ();
+
+    // The most ids (and extras) listed for one heading
+    private int maxIds = Integer.MAX_VALUE;
+
+
+    public Browse (HeadingsDB headings, AuthDB auth)
+    {
+        headingsDB = headings;
+        authDB = auth;
+    }
+
+
+    public synchronized void reopenDatabasesIfUpdated () throws Exception
+    {
+        headingsDB.reopenIfUpdated ();
+        authDB.reopenIfUpdated ();
+    }
+
+
+    public void queryFinished ()
+    {
+        headingsDB.queryFinished ();
+    }
+
+
+    public void setMaxIds (int maxIds)
+    {
+        this.maxIds = (maxIds > 0) ? maxIds : Integer.MAX_VALUE;
+    }
+
+
+    /*
+     * Count the records in reader for every heading, ready for requests
+     * searching it.  Merged DBs have no rowids of their own to index the
+     * counts by, and DBs without a heading index would need sorting every
+     * time, so they keep searching.  Counts for an older reader or DB than
+     * the ones we have are thrown away.
+     */
+    public void updateCounts (IndexReader reader, String field) throws Exception
+    {
+        if (!canCount ()) {
+            return;
+        }
+
+        synchronized (countsLock) {
+            HeadingCounts current = counts;
+            if (current != null && current.isCurrent (reader, headingsDB)) {
+                return;
+            }
+
+            long start = System.currentTimeMillis ();
+
+            HeadingCounts updated = new HeadingCounts (reader, field, headingsDB.path);
+
+            if (current != null && updated.isOlderThan (current)) {
+                return;
+            }
+
+            counts = updated;
+
+            Log.info ("Counted records for " + headingsDB.path + " in " +
+                      (System.currentTimeMillis () - start) + "ms");
+        }
+    }
+
+
+    /*
+     * Whether there are counts for the records in reader, or there's no
+     * point building them.
+     */
+    public boolean hasCounts (IndexReader reader)
+    {
+        HeadingCounts current = counts;
+
+        return (!canCount () ||
+                (current != null && current.isCurrent (reader, headingsDB)));
+    }
+
+
+    private boolean canCount ()
+    {
+        return (!(headingsDB instanceof MergedHeadingsDB) && headingsDB.headingIndexed);
+    }
+
+
+    // The counts for bibDB's records, if we have them.  Filtered requests
+    // only count some records, so need to search.
+    private HeadingCounts countsFor (BibDB bibDB)
+    {
+        HeadingCounts current = counts;
+
+        if (current == null || bibDB.isFiltered () ||
+            !current.isCurrent (bibDB.getReader (), headingsDB)) {
+            return null;
+        }
+
+        return current;
+    }
+
+
+    private int recordCount (BibDB bibDB, HeadingCounts counts, String heading)
+        throws Exception
+    {
+        if (counts != null) {
+            int rowid = headingsDB.getRowid (heading);
+
+            if (rowid > 0) {
+                return counts.count (rowid);
+            }
+        }
+
+        return bibDB.recordCount (heading);
+    }
+
+
+    /*
+     * Fill in the parts of item named in wanted (see BrowseItem.FIELDS),
+     * skipping the searches and lookups the rest would need.
+     */
+    private void populateItem (BrowseItem item, int rowid, BibDB bibDB,
+                               HeadingCounts counts, String extras,
+                               Set<String> wanted, long deadline)
+        throws Exception
+    {
+        boolean wantExtras = wanted.contains ("extras");
+
+        if (wanted.contains ("ids") || wantExtras) {
+            Map<String, List<Collection<String>>> bibinfo =
+                bibDB.matchingIDs (item.heading, wantExtras ? extras : "", maxIds, deadline);
+            //item.ids = bibinfo.get ("ids");
+	    item.setIds (bibinfo.get ("ids"));
+            bibinfo.remove ("ids");
+
+            if (wantExtras) {
+                item.extras = bibinfo;
+            }
+        }
+
+        if (wanted.contains ("count")) {
+            if (counts != null && rowid > 0) {
+                item.count = counts.count (rowid);
+            } else if (item.ids != null && item.ids.size () < maxIds) {
+                item.count = item.ids.size ();
+            } else {
+                // Just the count: no stored fields read
+                item.count = bibDB.recordCount (item.heading);
+            }
+        }
+
+        if (!(wanted.contains ("seeAlso") || wanted.contains ("useInstead") ||
+              wanted.contains ("note"))) {
+            return;
+        }
+
+        Map<String, List<String>> fields = authDB.getFields (item.heading);
+
+        if (wanted.contains ("seeAlso")) {
+            for (String value : fields.get ("seeAlso")) {
+                if (recordCount (bibDB, counts, value) > 0) {
+                    item.seeAlso.add (value);
+                }
+            }
+        }
+
+        if (wanted.contains ("useInstead")) {
+            for (String value : fields.get ("useInstead")) {
+                if (recordCount (bibDB, counts, value) > 0) {
+                    item.useInstead.add (value);
+                }
+            }
+        }
+
+        if (wanted.contains ("note")) {
+            for (String value : fields.get ("note")) {
+                item.note = value;
+            }
+        }
+    }
+
+
+    public int getId (String from) throws Exception
+    {
+        return headingsDB.getHeadingStart (from);
+    }
 
 
-    public Browse (HeadingsDB headings, AuthDB auth)
+    public HeadingBitmap getFilterBitmap (String[] fqs) throws Exception
     {
-        headingsDB = headings;
-        authDB = auth;
+        return headingsDB.getFilterBitmap (fqs);
     }
 
 
-    public void setBibDB (BibDB b)
+    public List<String> getSuggestions (String prefix, int rows) throws Exception
     {
-        this.bibDB = b;
+        return headingsDB.getSuggestions (prefix, rows);
     }
 
 
-    public synchronized void reopenDatabasesIfUpdated () throws Exception
+    public List<Jump> getJumps ()
     {
-        headingsDB.reopenIfUpdated ();
-        authDB.reopenIfUpdated ();
+        return headingsDB.getJumps ();
     }
 
 
-    public void queryFinished ()
+    public int getJumpStart (String label)
     {
-        headingsDB.queryFinished ();
+        return headingsDB.getJumpStart (label);
     }
 
 
-    private void populateItem (BrowseItem item, String extras) throws Exception
+    /*
+     * Every heading with its count of records in reader.  The export has
+     * its own connection to the DB, so it can carry on after the request
+     * lets go of the DB (a swapped out DB file stays readable while it's
+     * open).  Unless we already have counts for reader, each heading is
+     * counted as it's written, so the first rows go out straight away.
+     */
+    public HeadingExport export (IndexReader reader, String field) throws Exception
     {
-        Map<String, List<Collection<String>>> bibinfo = bibDB.matchingIDs (item.heading, extras);
-        //item.ids = bibinfo.get ("ids");
-	item.setIds (bibinfo.get ("ids"));
-        bibinfo.remove ("ids");
-        item.count = item.ids.size ();
+        if (headingsDB instanceof MergedHeadingsDB) {
+            throw new Exception ("Merged sources can't be exported");
+        }
 
-        item.extras = bibinfo;
+        long version = new File (headingsDB.path).lastModified ();
 
-        Map<String, List<String>> fields = authDB.getFields (item.heading);
+        Class.forName ("org.sqlite.JDBC");
+        Connection db = DriverManager.getConnection ("jdbc:sqlite:" + headingsDB.path);
 
-        for (String value : fields.get ("seeAlso")) {
-            if (bibDB.recordCount (value) > 0) {
-                item.seeAlso.add (value);
-            }
-        }
+        try {
+            HeadingCounts exportCounts = counts;
 
-        for (String value : fields.get ("useInstead")) {
-            if (bibDB.recordCount (value) > 0) {
-                item.useInstead.add (value);
+            if (exportCounts != null && exportCounts.isFor (reader, version)) {
+                return new HeadingExport (db, exportCounts, null);
             }
-        }
 
-        for (String value : fields.get ("note")) {
-            item.note = value;
+            return new HeadingExport (db, null, new TermCounter (reader, field));
+        } catch (Exception e) {
+            db.close ();
+            throw e;
         }
     }
 
 
-    public int getId (String from) throws Exception
+    /*
+     * The bib data comes from the BibDB passed in rather than one held by
+     * the Browse, since each request has its own searcher and filters.
+     */
+    public BrowseList getList (BibDB bibDB, int rowid, int offset, int rows,
+                               String extras)
+        throws Exception
     {
-        return headingsDB.getHeadingStart (from);
+        return getList (bibDB, null, rowid, offset, rows, extras, BrowseItem.FIELDS, 0);
     }
 
 
-    public BrowseList getList (int rowid, int offset, int rows, String extras)
+    /*
+     * With a filter bitmap, only the headings it contains are listed, and
+     * offset counts through those.  Items only get the fields named in
+     * wanted.
+     *
+     * If the deadline (in ms, or 0 for none) passes, the list stops at
+     * the items filled in so far and is marked partial.  The item being
+     * filled in at the time stops loading ids, so may have fewer than it
+     * should.
+     */
+    public BrowseList getList (BibDB bibDB, HeadingBitmap filter,
+                               int rowid, int offset, int rows, String extras,
+                               Set<String> wanted, long deadline)
         throws Exception
     {
         BrowseList result = new BrowseList ();
 
-        HeadingSlice h = headingsDB.getHeadings (Math.max (0, rowid + offset),
-                                                 rows);
+        HeadingSlice h;
+        if (filter != null) {
+            h = headingsDB.getHeadings (filter,
+                                        Math.max (0, filter.rank (rowid) + offset),
+                                        rows);
+        } else {
+            h = headingsDB.getHeadings (rowid, offset, rows);
+        }
 
         result.totalCount = h.total;
 
+        HeadingCounts counts = countsFor (bibDB);
+
+        int i = 0;
         for (String heading : h.headings) {
+            if (deadline > 0 && System.currentTimeMillis () > deadline) {
+                result.partial = true;
+                break;
+            }
+
             BrowseItem item = new BrowseItem (heading);
 
-            populateItem (item, extras);
+            int headingRowid = (i < h.rowids.size ()) ? h.rowids.get (i) : -1;
+            i++;
+
+            populateItem (item, headingRowid, bibDB, counts, extras, wanted, deadline);
 
             result.items.add (item);
+
+            // Its ids may have been cut short
+            if (deadline > 0 && System.currentTimeMillis () > deadline) {
+                result.partial = true;
+                break;
+            }
         }
 
         return result;
@@ -698,25 +2728,92 @@ class BrowseSource
     public String dropChars;
     public String normalizer;
 
+    // A comma-separated DBpath lists several headings DBs to merge, and
+    // cores names the Solr cores whose records to count (null for just the
+    // one handling the request).
+    public List<String> DBpaths;
+    public List<String> cores;
+
     public Browse browse;
 
+    // Set while its heading counts are being rebuilt in the background
+    public AtomicBoolean countsPending = new AtomicBoolean ();
+
+    // Limits, with 0 for none: requests running at once (as permits),
+    // rows per page, ids per heading and milliseconds per request.
+    public Semaphore permits;
+    public int maxRows;
+    public int maxIds;
+    public int timeAllowed;
+
 
     public BrowseSource (String DBpath,
                          String field,
                          String dropChars,
                          String normalizer)
+    {
+        this (DBpath, field, dropChars, normalizer, null);
+    }
+
+
+    public BrowseSource (String DBpath,
+                         String field,
+                         String dropChars,
+                         String normalizer,
+                         String cores)
     {
         this.DBpath = DBpath;
         this.field = field;
         this.dropChars = dropChars;
         this.normalizer = normalizer;
+
+        this.DBpaths = new ArrayList<String> ();
+        for (String path : DBpath.split (",")) {
+            if (path.trim ().length () > 0) {
+                DBpaths.add (path.trim ());
+            }
+        }
+
+        if (cores != null && cores.trim ().length () > 0) {
+            this.cores = new ArrayList<String> ();
+            for (String core : cores.split (",")) {
+                if (core.trim ().length () > 0) {
+                    this.cores.add (core.trim ());
+                }
+            }
+        }
+    }
+
+
+    public void setLimits (int maxConcurrent, int maxRows, int maxIds, int timeAllowed)
+    {
+        permits = (maxConcurrent > 0) ? new Semaphore (maxConcurrent) : null;
+        this.maxRows = maxRows;
+        this.maxIds = maxIds;
+        this.timeAllowed = timeAllowed;
+    }
+
+
+    public HeadingsDB openHeadingsDB () throws Exception
+    {
+        if (DBpaths.size () > 1) {
+            return new MergedHeadingsDB (DBpaths, normalizer);
+        } else {
+            return new HeadingsDB (DBpath, normalizer);
+        }
     }
 }
 
 
 
-public class BrowseRequestHandler extends RequestHandlerBase
+public class BrowseRequestHandler extends RequestHandlerBase implements SolrCoreAware
 {
+    static int DEFAULT_SUGGESTIONS = 10;
+    static int MAX_SUGGESTIONS = 100;
+
+    // How long to wait for a busy source when there's no time limit
+    static int MAX_QUEUE_WAIT = 1000;
+
     private String authPath = null;
     private String bibPath = null;
 
@@ -724,6 +2821,18 @@ public class BrowseRequestHandler extends RequestHandlerBase
 
     private SolrParams solrParams;
 
+    // Whether to keep per-heading record counts for each searcher
+    private boolean headingCounts = false;
+
+    // Builds counts for new searchers, and rebuilds ones that went out of
+    // date between searchers (e.g. when a headings DB was swapped)
+    private ExecutorService countsBuilder;
+
+    // Browse lists being worked out right now, so that identical requests
+    // arriving meanwhile can wait for them rather than repeat the work
+    private ConcurrentMap<List<Object>, FutureTask<BrowseList>> inFlight =
+        new ConcurrentHashMap<List<Object>, FutureTask<BrowseList>> ();
+
 
     private String asAbsFile (String s)
     {
@@ -747,6 +2856,8 @@ public class BrowseRequestHandler extends RequestHandlerBase
         authPath = asAbsFile (solrParams.get ("authIndexPath"));
         bibPath = asAbsFile (solrParams.get ("bibIndexPath"));
 
+        headingCounts = solrParams.getBool ("headingCounts", false);
+
         sources = new HashMap<String, BrowseSource> ();
 
         for (String source : Arrays.asList (solrParams.get
@@ -754,11 +2865,200 @@ public class BrowseRequestHandler extends RequestHandlerBase
             @SuppressWarnings("unchecked")
             NamedList<String> entry = (NamedList<String>)args.get (source);
 
-            sources.put (source,
-                         new BrowseSource (entry.get ("DBpath"),
-                                           entry.get ("field"),
-                                           entry.get ("dropChars"),
-                                           entry.get ("normalizer")));
+            BrowseSource browseSource = new BrowseSource (entry.get ("DBpath"),
+                                                          entry.get ("field"),
+                                                          entry.get ("dropChars"),
+                                                          entry.get ("normalizer"),
+                                                          entry.get ("cores"));
+
+            browseSource.setLimits (limit (entry, "maxConcurrent"),
+                                    limit (entry, "maxRows"),
+                                    limit (entry, "maxIds"),
+                                    limit (entry, "timeAllowed"));
+
+            sources.put (source, browseSource);
+        }
+    }
+
+
+    /*
+     * A limit from a source's settings, or the handler's if it doesn't set
+     * one.  0 for none.
+     */
+    private int limit (NamedList<?> entry, String name)
+    {
+        Object value = entry.get (name);
+
+        if (value == null) {
+            value = solrParams.get (name);
+        }
+
+        return (value == null) ? 0 : Math.max (0, asInt (value.toString ()));
+    }
+
+
+    /*
+     * Count each source's headings in the background whenever a new
+     * searcher opens.  Counting takes a pass over every heading, so it
+     * stays out of the way of the commit.
+     */
+    public void inform (final SolrCore core)
+    {
+        if (!headingCounts) {
+            return;
+        }
+
+        countsBuilder = Executors.newSingleThreadExecutor (new ThreadFactory () {
+                public Thread newThread (Runnable r)
+                {
+                    Thread t = new Thread (r, "browse-heading-counts");
+                    t.setDaemon (true);
+                    return t;
+                }
+            });
+
+        core.addCloseHook (new CloseHook () {
+                public void preClose (SolrCore core)
+                {
+                    countsBuilder.shutdownNow ();
+                }
+
+                public void postClose (SolrCore core)
+                {
+                }
+            });
+
+        core.registerNewSearcherListener (new SolrEventListener () {
+                // SolrEventListener's own signature uses the raw type
+                @SuppressWarnings("rawtypes")
+                public void init (NamedList args)
+                {
+                }
+
+                public void postCommit ()
+                {
+                }
+
+                public void postSoftCommit ()
+                {
+                }
+
+                public void newSearcher (SolrIndexSearcher newSearcher,
+                                         SolrIndexSearcher currentSearcher)
+                {
+                    for (BrowseSource source : sources.values ()) {
+                        // Sources not yet used have nothing open to count.
+                        // Their first request will ask for counts.
+                        if (source.browse == null || source.cores != null) {
+                            continue;
+                        }
+
+                        scheduleCounts (source, core);
+                    }
+                }
+            });
+    }
+
+
+    /*
+     * Build source's counts for core's newest searcher in the background.
+     * Requests search for their counts until they're done.
+     *
+     * The searcher is only picked once the build starts: one opened while
+     * we were waiting is the one worth counting, and from a new searcher's
+     * listener, the new searcher isn't current yet.
+     */
+    private void scheduleCounts (final BrowseSource source, final SolrCore core)
+    {
+        if (countsBuilder == null || !source.countsPending.compareAndSet (false, true)) {
+            return;
+        }
+
+        try {
+            countsBuilder.submit (new Runnable () {
+                    public void run ()
+                    {
+                        RefCounted<SolrIndexSearcher> searcher = null;
+
+                        try {
+                            searcher = core.getNewestSearcher (false);
+
+                            if (searcher != null) {
+                                source.browse.updateCounts (searcher.get ().getIndexReader (),
+                                                            source.field);
+                            }
+                        } catch (Exception e) {
+                            Log.info ("Failed to count headings for " + source.DBpath +
+                                      ": " + e);
+                        } finally {
+                            if (searcher != null) {
+                                searcher.decref ();
+                            }
+
+                            source.countsPending.set (false);
+                        }
+                    }
+                });
+        } catch (RejectedExecutionException e) {
+            source.countsPending.set (false);
+        }
+    }
+
+
+    /*
+     * The item fields named in fl (comma or space separated), or all of
+     * them if it's missing or "*".
+     */
+    private Set<String> itemFields (String fl) throws Exception
+    {
+        if (fl == null || fl.trim ().length () == 0 || fl.trim ().equals ("*")) {
+            return BrowseItem.FIELDS;
+        }
+
+        Set<String> result = new HashSet<String> ();
+
+        for (String field : fl.trim ().split ("[,\\s]+")) {
+            if (!BrowseItem.FIELDS.contains (field)) {
+                throw new Exception ("Invalid value for parameter: fl (" + field + ")");
+            }
+
+            result.add (field);
+        }
+
+        return result;
+    }
+
+
+    /*
+     * The result of compute, or of the identical computation (the same key)
+     * already running for another request.  Results aren't kept once
+     * they're done, so this isn't a cache: it only saves work when a page
+     * is popular enough for requests to overlap.
+     */
+    private BrowseList coalesce (List<Object> key, Callable<BrowseList> compute)
+        throws Exception
+    {
+        FutureTask<BrowseList> task = new FutureTask<BrowseList> (compute);
+        FutureTask<BrowseList> running = inFlight.putIfAbsent (key, task);
+
+        if (running == null) {
+            try {
+                task.run ();
+            } finally {
+                inFlight.remove (key, task);
+            }
+
+            running = task;
+        }
+
+        try {
+            return running.get ();
+        } catch (ExecutionException e) {
+            if (e.getCause () instanceof Exception) {
+                throw (Exception) e.getCause ();
+            }
+
+            throw new Exception (e.getCause ());
         }
     }
 
@@ -774,12 +3074,53 @@ public class BrowseRequestHandler extends RequestHandlerBase
     }
 
 
+    /*
+     * The request's fq parameters as queries, or null if there aren't any.
+     */
+    private List<Query> filterQueries (org.apache.solr.request.SolrQueryRequest req)
+        throws Exception
+    {
+        String[] fqs = req.getParams ().getParams ("fq");
+
+        if (fqs == null) {
+            return null;
+        }
+
+        List<Query> filters = new ArrayList<Query> ();
+
+        for (String fq : fqs) {
+            if (fq != null && fq.trim ().length () > 0) {
+                Query q = QParser.getParser (fq, null, req).getQuery ();
+
+                if (q != null) {
+                    filters.add (q);
+                }
+            }
+        }
+
+        return filters.isEmpty () ? null : filters;
+    }
+
+
+    /*
+     * The records matching all of the filters, or null for no filters.  The
+     * searcher's filter cache keeps the DocSet for each fq, so a filter
+     * repeated across requests costs an intersection rather than a search.
+     */
+    private DocSet filterDocs (SolrIndexSearcher searcher, List<Query> filters)
+        throws Exception
+    {
+        return (filters == null) ? null : searcher.getDocSet (filters);
+    }
+
+
     @Override
     public void handleRequestBody (org.apache.solr.request.SolrQueryRequest req,
                                    org.apache.solr.response.SolrQueryResponse rsp)
         throws Exception
     {
         SolrParams p = req.getParams ();
+        long start = System.currentTimeMillis ();
 
         if (p.get ("reopen") != null) {
             LuceneDB.reopenAllIfUpdated ();
@@ -805,6 +3146,8 @@ public class BrowseRequestHandler extends RequestHandlerBase
 
         int offset = (p.get ("offset") != null) ? asInt (p.get ("offset")) : 0;
 
+        Set<String> fl = itemFields (p.get ("fl"));
+
         if (rows < 0) {
             throw new Exception ("Invalid value for parameter: rows");
         }
@@ -816,45 +3159,218 @@ public class BrowseRequestHandler extends RequestHandlerBase
 
         BrowseSource source = sources.get (sourceName);
 
+        // This also caps suggest, which has its own cap anyway.  jumps and
+        // export don't take rows: they return everything.
+        if (source.maxRows > 0) {
+            rows = Math.min (rows, source.maxRows);
+        }
+
+        // A request can ask for less time than the source allows, but not
+        // more.
+        int timeAllowed = (p.get ("timeAllowed") != null) ? asInt (p.get ("timeAllowed")) : 0;
+        if (source.timeAllowed > 0 && (timeAllowed <= 0 || timeAllowed > source.timeAllowed)) {
+            timeAllowed = source.timeAllowed;
+        }
+
+        long deadline = (timeAllowed > 0) ? start + timeAllowed : 0;
+
         synchronized (this) {
             if (source.browse == null) {
                 source.browse = (new Browse
-                                 (new HeadingsDB (source.DBpath, source.normalizer),
+                                 (source.openHeadingsDB (),
                                   new AuthDB
                                   (authPath,
                                    solrParams.get ("preferredHeadingField"),
                                    solrParams.get ("useInsteadHeadingField"),
                                    solrParams.get ("seeAlsoHeadingField"),
                                    solrParams.get ("scopeNoteField"))));
+                source.browse.setMaxIds (source.maxIds);
                 Log.info("new browse source with HeadingsDB (" + source.DBpath + ", " + source.normalizer + ")");
             }
+        }
 
-            source.browse.setBibDB (new BibDB (req.getSearcher (),
-                                               source.field));
+        // A busy source turns requests away rather than queueing them
+        // without end and tying up Solr's threads.
+        if (source.permits != null) {
+            long wait = (deadline > 0) ? deadline - System.currentTimeMillis () : MAX_QUEUE_WAIT;
+
+            if (!source.permits.tryAcquire (Math.max (0, wait), TimeUnit.MILLISECONDS)) {
+                throw new SolrException (SolrException.ErrorCode.SERVICE_UNAVAILABLE,
+                                         "Browse source " + sourceName + " is too busy");
+            }
         }
 
+        // An export takes the permit with it
+        Semaphore permit = source.permits;
+
+        // Other cores' searchers we've borrowed for this request
+        List<SolrCore> openCores = new ArrayList<SolrCore> ();
+        List<RefCounted<SolrIndexSearcher>> searchers =
+            new ArrayList<RefCounted<SolrIndexSearcher>> ();
+
         try {
             source.browse.reopenDatabasesIfUpdated ();
 
-            if (from != null) {
+            String suggest = p.get ("suggest");
+            if (suggest != null) {
+                // Just the headings: no bib or authority data.
+                int n = (rows > 0) ? Math.min (rows, MAX_SUGGESTIONS) : DEFAULT_SUGGESTIONS;
+
+                Map<String,Object> result = new HashMap<String, Object> ();
+                result.put ("prefix", suggest);
+                result.put ("headings", source.browse.getSuggestions (suggest, n));
+
+                rsp.add ("Suggest", result);
+                return;
+            }
+
+            if (p.get ("jumps") != null) {
+                // The jump table, for drawing a jump bar
+                List<Map<String, Object>> jumps = new ArrayList<Map<String, Object>> ();
+
+                for (Jump jump : source.browse.getJumps ()) {
+                    jumps.add (jump.asMap ());
+                }
+
+                rsp.add ("Jumps", jumps);
+                return;
+            }
+
+            if (p.get ("export") != null) {
+                // The whole source, streamed out as the response is
+                // written.  The request keeps its searcher until then.
+                if (source.cores != null) {
+                    throw new Exception ("Sources with cores can't be exported");
+                }
+
+                HeadingExport export = source.browse.export (req.getSearcher ().getIndexReader (),
+                                                             source.field);
+
+                // In case the client goes away before the end.  The export
+                // holds on to the source's permit until then.
+                SolrRequestInfo info = SolrRequestInfo.getRequestInfo ();
+                if (info != null) {
+                    info.addCloseHook (export);
+
+                    if (permit != null) {
+                        export.releaseOnClose (permit);
+                        permit = null;
+                    }
+                }
+
+                rsp.add ("Export", export);
+                return;
+            }
+
+            List<Query> filters = filterQueries (req);
+            BibDB bibDB;
+
+            // The versions of the bib data being browsed
+            List<IndexReader> readers = new ArrayList<IndexReader> ();
+
+            if (source.cores == null) {
+                readers.add (req.getSearcher ().getIndexReader ());
+
+                if (!source.browse.hasCounts (req.getSearcher ().getIndexReader ())) {
+                    scheduleCounts (source, req.getCore ());
+                }
+
+                bibDB = new BibDB (req.getSearcher (),
+                                   source.field,
+                                   filterDocs (req.getSearcher (), filters));
+            } else {
+                List<BibDB> shards = new ArrayList<BibDB> ();
+
+                for (String coreName : source.cores) {
+                    SolrCore core = req.getCore ().getCoreDescriptor ()
+                        .getCoreContainer ().getCore (coreName);
+
+                    if (core == null) {
+                        throw new Exception ("No such core: " + coreName);
+                    }
+
+                    openCores.add (core);
+
+                    RefCounted<SolrIndexSearcher> searcher = core.getSearcher ();
+                    searchers.add (searcher);
+                    readers.add (searcher.get ().getIndexReader ());
+
+                    shards.add (new BibDB (searcher.get (),
+                                           source.field,
+                                           filterDocs (searcher.get (), filters)));
+                }
+
+                bibDB = new MergedBibDB (shards);
+            }
+
+            String jump = p.get ("jump");
+
+            if (jump != null) {
+                // Labels not in the jump table work like from
+                rowid = source.browse.getJumpStart (jump);
+                if (rowid < 0) {
+                    rowid = source.browse.getId (jump);
+                }
+            } else if (from != null) {
                 rowid = (source.browse.getId (from));
             }
 
 
             Log.info ("Browsing from: " + rowid);
 
-            BrowseList list = source.browse.getList (rowid, offset, rows, extras);
+            final Browse browse = source.browse;
+            final BibDB listBibDB = bibDB;
+            final HeadingBitmap filter = browse.getFilterBitmap (p.getParams ("fq"));
+            final int listRowid = rowid;
+            final int listOffset = offset;
+            final int listRows = rows;
+            final String listExtras = extras;
+            final Set<String> listFields = fl;
+            final long listDeadline = deadline;
+
+            // Requests sharing a list have the same time limit, so none
+            // waits longer than it asked to.
+            String[] fqs = p.getParams ("fq");
+            List<Object> key = Arrays.<Object>asList (sourceName, rowid, offset, rows,
+                                                      extras, fl,
+                                                      (fqs == null) ? null : Arrays.asList (fqs),
+                                                      readers, timeAllowed);
+
+            BrowseList list = coalesce (key, new Callable<BrowseList> () {
+                    public BrowseList call () throws Exception
+                    {
+                        return browse.getList (listBibDB, filter,
+                                               listRowid, listOffset, listRows,
+                                               listExtras, listFields, listDeadline);
+                    }
+                });
 
             Map<String,Object> result = new HashMap<String, Object> ();
 
             result.put ("totalCount", list.totalCount);
-            result.put ("items", list.asMap ());
+            result.put ("items", list.asMap (fl));
             result.put ("startRow", rowid);
             result.put ("offset", offset);
 
+            if (list.partial) {
+                result.put ("partialResults", Boolean.TRUE);
+            }
+
             rsp.add ("Browse", result);
         } finally {
+            for (RefCounted<SolrIndexSearcher> searcher : searchers) {
+                searcher.decref ();
+            }
+
+            for (SolrCore core : openCores) {
+                core.close ();
+            }
+
             source.browse.queryFinished ();
+
+            if (permit != null) {
+                permit.release ();
+            }
         }
     }
 
@@ -0,0 +1,162 @@
+//
+// Works out which non-preferred authority headings are linked from the bib
+// data.  A non-preferred heading is linked if the preferred heading of an
+// authority record listing it appears in the bib index.
+//
+// Rather than searching both indexes for every heading, this makes one pass
+// over the authority index to map each non-preferred heading to the
+// preferred headings of the records listing it, and one pass over the bib
+// field's terms to see which of those preferred headings are there.  After
+// that, each check is a couple of hash lookups.
+//
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.document.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import java.io.*;
+import java.util.*;
+
+
+public class AuthorityLinkage
+{
+    // Non-preferred heading -> the preferred heading of each authority record
+    // listing it, in docid order.  Null stands in for a record with no
+    // preferred heading.
+    private Map<String, List<String>> preferredFor = new HashMap<String, List<String>> ();
+
+
+    public AuthorityLinkage (IndexReader authReader,
+                             String preferredField,
+                             String insteadOfField)
+        throws IOException
+    {
+        Set<String> fieldSelection = new HashSet<String> ();
+        fieldSelection.add (preferredField);
+        fieldSelection.add (insteadOfField);
+
+        for (AtomicReaderContext leaf : authReader.leaves ()) {
+            AtomicReader reader = leaf.reader ();
+            Bits liveDocs = reader.getLiveDocs ();
+
+            for (int docid = 0; docid < reader.maxDoc (); docid++) {
+                if (liveDocs != null && !liveDocs.get (docid)) {
+                    continue;
+                }
+
+                Document doc = reader.document (docid, fieldSelection);
+
+                String[] insteadOf = doc.getValues (insteadOfField);
+                if (insteadOf.length == 0) {
+                    continue;
+                }
+
+                String[] preferred = doc.getValues (preferredField);
+                String preferredHeading = (preferred.length > 0) ? preferred[0] : null;
+
+                for (String heading : insteadOf) {
+                    List<String> headings = preferredFor.get (heading);
+
+                    if (headings == null) {
+                        headings = new ArrayList<String> (1);
+                        preferredFor.put (heading, headings);
+                    }
+
+                    headings.add (preferredHeading);
+                }
+            }
+        }
+    }
+
+
+    // The preferred headings from our authority records that have at least
+    // one live document in the bib field.
+    private Set<String> preferredInBibData (IndexReader bibReader, String field)
+        throws IOException
+    {
+        Set<String> result = new HashSet<String> ();
+
+        Terms terms = MultiFields.getTerms (bibReader, field);
+        if (terms == null) {
+            return result;
+        }
+
+        // Visit the headings in term order so we only ever seek forwards
+        Set<BytesRef> unique = new HashSet<BytesRef> ();
+        for (List<String> headings : preferredFor.values ()) {
+            for (String heading : headings) {
+                if (heading != null) {
+                    unique.add (new BytesRef (heading));
+                }
+            }
+        }
+
+        BytesRef[] wanted = unique.toArray (new BytesRef[unique.size ()]);
+        Arrays.sort (wanted);
+
+        TermsEnum tenum = terms.iterator (null);
+        Bits liveDocs = MultiFields.getLiveDocs (bibReader);
+        DocsEnum docsEnum = null;
+
+        for (BytesRef heading : wanted) {
+            TermsEnum.SeekStatus status = tenum.seekCeil (heading);
+
+            if (status == TermsEnum.SeekStatus.END) {
+                break;
+            }
+
+            if (status != TermsEnum.SeekStatus.FOUND) {
+                continue;
+            }
+
+            if (liveDocs != null) {
+                docsEnum = tenum.docs (liveDocs, docsEnum, DocsEnum.FLAG_NONE);
+
+                if (docsEnum.nextDoc () == DocIdSetIterator.NO_MORE_DOCS) {
+                    continue;
+                }
+            }
+
+            result.add (heading.utf8ToString ());
+        }
+
+        return result;
+    }
+
+
+    /*
+     * A Predicate accepting the non-preferred headings linked from the given
+     * bib field.  The returned Predicate is safe to use from several threads.
+     */
+    public Predicate linkedFrom (IndexReader bibReader, String field)
+        throws IOException
+    {
+        final Set<String> inBibData = preferredInBibData (bibReader, field);
+
+        return new Predicate () {
+            public boolean isSatisfiedBy (Object obj)
+            {
+                List<String> headings = preferredFor.get ((String) obj);
+
+                if (headings == null) {
+                    return false;
+                }
+
+                for (String preferredHeading : headings) {
+                    if (preferredHeading == null) {
+                        // An authority record with no preferred heading.
+                        // As before, that's the end of the matter.
+                        return false;
+                    }
+
+                    if (inBibData.contains (preferredHeading)) {
+                        return true;
+                    }
+                }
+
+                return false;
+            }
+        };
+    }
+}
@@ -7,83 +7,146 @@ import java.util.*;
 
 import java.sql.*;
 
-// Note that this version is coming from Solr!
-import org.apache.commons.codec.binary.Base64;
+import org.vufind.util.Normalizer;
+import org.vufind.util.NormalizerFactory;
+import org.vufind.util.Progress;
+import org.vufind.util.SortKeys;
 
 
+//
+// There are two ways of building the database:
+//
+//   * From unsorted headings (the default), which are loaded into a scratch
+//     table and then copied into the headings table in key order.
+//
+//   * From headings that are already sorted by key and de-duplicated (with
+//     -Dbrowse.presorted=true, or automatically with -Dbrowse.sort=true).
+//     These are written straight into the headings table in rowid order,
+//     which saves writing and sorting everything a second time.
+//
+// Other system properties:
+//
+//   browse.sqlite.pagesize  -- SQLite page size for the new database
+//   browse.sqlite.cachesize -- SQLite cache size (in pages) while building
+//   browse.layout           -- "compact" to skip building the key index.
+//                              Since rowids follow key order, the browse
+//                              handler binary searches on rowid instead.
+//   browse.jumps            -- comma-separated labels for the jump table
+//                              (default A to Z), or empty for none.  Each
+//                              label is normalized with browse.normalizer
+//                              and records where the headings starting with
+//                              it begin, and how many there are.
+//
 public class CreateBrowseSQLite
 {
-    private Connection outputDB;
+    private static final String DEFAULT_JUMPS =
+        "A,B,C,D,E,F,G,H,I,J,K,L,M,N,O,P,Q,R,S,T,U,V,W,X,Y,Z";
 
-    private String KEY_SEPARATOR = "\1";
+    private static final Progress.Counter HEADINGS = Progress.counter ("sqlite.headings");
+    private static final Progress.Counter BYTES = Progress.counter ("sqlite.bytes");
 
+    private static final Progress.Counter LOAD_TIME = Progress.timer ("sqlite.load");
+    private static final Progress.Counter ORDER_TIME = Progress.timer ("sqlite.order");
+    private static final Progress.Counter INDEX_TIME = Progress.timer ("sqlite.index");
+    private static final Progress.Counter JUMPS_TIME = Progress.timer ("sqlite.jumps");
 
-    /*
-     * Like BufferedReader#readLine(), but only returns lines ended by a \r\n.
-     */
-    private String readCRLFLine (BufferedReader br) throws IOException
+    private Connection outputDB;
+
+
+    // A jump table entry: where the headings whose keys start with prefix
+    // begin, and how many of them there are.
+    private static class Jump
     {
-        StringBuilder sb = new StringBuilder();
+        String label;
+        byte[] prefix;
+        int start;
+        int count;
+    }
 
-        while (true) {
-            int ch = br.read ();
+    private void loadHeadings (HeadingStream headings)
+        throws Exception
+    {
+        int count = 0;
 
-            if (ch >= 0) {
-                if (ch == '\r') {
-                    // This might either be a carriage return embedded in record
-                    // data (which we want to preserve) or the first part of the
-                    // \r\n end of line marker.
+        outputDB.setAutoCommit (false);
 
-                    ch = br.read ();
+        PreparedStatement prep = outputDB.prepareStatement (
+            "insert or ignore into all_headings (key, heading) values (?, ?)");
 
-                    if (ch == '\n') {
-                        // An end of line.  We're done.
-                        return sb.toString();
-                    }
+        while (headings.next ()) {
+            prep.setBytes (1, headings.key ());
+            prep.setBytes (2, headings.heading ());
 
-                    // Must have been an embedded carriage return.  Keep it.
-                    sb.append('\r');
-                }
+            prep.addBatch ();
 
-                sb.append((char) ch);
-            } else {
-                // EOF.  Show's over.
-                return null;
+            if ((count % 500000) == 0) {
+                prep.executeBatch ();
+                prep.clearBatch ();
             }
+
+            count++;
+            HEADINGS.increment ();
         }
+
+        prep.executeBatch ();
+        prep.close ();
+
+        outputDB.commit ();
+        outputDB.setAutoCommit (true);
     }
 
 
-    private void loadHeadings (BufferedReader br)
+    /*
+     * Load headings that are already in key order straight into the headings
+     * table, so that their rowids follow key order.  Repeated (key, heading)
+     * pairs are skipped, and out of order input is an error.
+     */
+    private void loadSortedHeadings (HeadingStream headings)
         throws Exception
     {
         int count = 0;
 
+        byte[] lastKey = null;
+        byte[] lastHeading = null;
+
         outputDB.setAutoCommit (false);
 
         PreparedStatement prep = outputDB.prepareStatement (
-            "insert or ignore into all_headings (key, heading) values (?, ?)");
+            "insert into headings (key, heading) values (?, ?)");
+
+        while (headings.next ()) {
+            byte[] key = headings.key ();
+            byte[] heading = headings.heading ();
 
-        String line;
-        while ((line = readCRLFLine (br)) != null) {
-            int sep = line.indexOf (KEY_SEPARATOR.charAt (0));
-            if (sep >= 0) {
+            if (lastKey != null) {
+                int cmp = SortKeys.compare (lastKey, key);
 
-                // If we found the separator character, we have a key/value pair of
-                // Base64-encoded strings to decode and push into the batch:
-                byte[] key = Base64.decodeBase64 (line.substring (0, sep).getBytes());
-                prep.setBytes (1, key);
-                prep.setBytes (2, Base64.decodeBase64 (line.substring (sep + 1)));
+                if (cmp > 0) {
+                    throw new Exception ("Headings aren't sorted (at record " + count + ").  " +
+                                         "Sort them with SortBrowseHeadings, or use " +
+                                         "-Dbrowse.sort=true.");
+                }
 
-                prep.addBatch ();
+                if (cmp == 0 && Arrays.equals (lastHeading, heading)) {
+                    continue;
+                }
             }
 
+            prep.setBytes (1, key);
+            prep.setBytes (2, heading);
+
+            prep.addBatch ();
+
             if ((count % 500000) == 0) {
                 prep.executeBatch ();
                 prep.clearBatch ();
             }
 
             count++;
+            HEADINGS.increment ();
+
+            lastKey = key;
+            lastHeading = heading;
         }
 
         prep.executeBatch ();
@@ -94,13 +157,31 @@ public class CreateBrowseSQLite
     }
 
 
-    private void setupDatabase ()
+    private void setupDatabase (boolean presorted)
         throws Exception
     {
         Statement stat = outputDB.createStatement ();
 
-        stat.executeUpdate ("drop table if exists all_headings;");
-        stat.executeUpdate ("create table all_headings (key, heading);");
+        // Page size only takes effect if set before any tables are created
+        if (System.getProperty ("browse.sqlite.pagesize") != null) {
+            stat.execute ("PRAGMA page_size = " +
+                          Integer.parseInt (System.getProperty ("browse.sqlite.pagesize")) + ";");
+        }
+
+        if (System.getProperty ("browse.sqlite.cachesize") != null) {
+            stat.execute ("PRAGMA cache_size = " +
+                          Integer.parseInt (System.getProperty ("browse.sqlite.cachesize")) + ";");
+        }
+
+        if (presorted) {
+            stat.executeUpdate ("drop table if exists all_headings;");
+            stat.executeUpdate ("drop table if exists headings;");
+            stat.executeUpdate ("create table headings (key, heading);");
+        } else {
+            stat.executeUpdate ("drop table if exists all_headings;");
+            stat.executeUpdate ("create table all_headings (key, heading);");
+        }
+
         stat.executeUpdate ("PRAGMA synchronous = OFF;");
         stat.execute ("PRAGMA journal_mode = OFF;");
 
@@ -114,8 +195,22 @@ public class CreateBrowseSQLite
         Statement stat = outputDB.createStatement ();
 
         stat.executeUpdate ("drop table if exists headings;");
+        // Blobs compare as unsigned bytes, so this is HeadingSorter's order
         stat.executeUpdate ("create table headings " +
-                            "as select * from all_headings order by key;");
+                            "as select * from all_headings order by key, heading;");
+
+        stat.close ();
+    }
+
+
+    private void buildKeyIndex ()
+        throws Exception
+    {
+        if ("compact".equals (System.getProperty ("browse.layout"))) {
+            return;
+        }
+
+        Statement stat = outputDB.createStatement ();
 
         stat.executeUpdate ("create index keyindex on headings (key);");
 
@@ -123,22 +218,206 @@ public class CreateBrowseSQLite
     }
 
 
-    public void create (String headingsFile, String outputPath)
+    // Lets the browse handler read the headings in heading order (to count
+    // their records) without sorting the whole table each time.
+    private void buildHeadingIndex ()
+        throws Exception
+    {
+        Statement stat = outputDB.createStatement ();
+
+        stat.executeUpdate ("create index headingindex on headings (heading);");
+
+        stat.close ();
+    }
+
+
+    private void buildJumpTable ()
+        throws Exception
+    {
+        List<Jump> jumps = new ArrayList<Jump> ();
+
+        String normalizerClass = System.getProperty ("browse.normalizer");
+        Normalizer normalizer = (normalizerClass == null) ?
+            NormalizerFactory.getNormalizer () :
+            NormalizerFactory.getNormalizer (normalizerClass);
+
+        for (String label : System.getProperty ("browse.jumps", DEFAULT_JUMPS).split (",")) {
+            if (label.trim ().length () == 0) {
+                continue;
+            }
+
+            Jump jump = new Jump ();
+            jump.label = label.trim ();
+            jump.prefix = SortKeys.primaryPrefix (normalizer.normalize (jump.label));
+            jumps.add (jump);
+        }
+
+        Statement stat = outputDB.createStatement ();
+        stat.executeUpdate ("drop table if exists jumps;");
+
+        if (jumps.isEmpty ()) {
+            stat.close ();
+            return;
+        }
+
+        // In key order, the headings starting with each prefix follow on
+        // from where it starts, so one pass over the headings finds them
+        // all.
+        Jump[] sorted = jumps.toArray (new Jump[jumps.size ()]);
+        Arrays.sort (sorted, new Comparator<Jump> () {
+                public int compare (Jump a, Jump b)
+                {
+                    return SortKeys.compare (a.prefix, b.prefix);
+                }
+            });
+
+        List<Jump> open = new LinkedList<Jump> ();
+        int next = 0;
+        int lastRowid = 0;
+
+        ResultSet rs = stat.executeQuery ("select rowid, key from headings order by rowid");
+
+        while (rs.next ()) {
+            int rowid = rs.getInt ("rowid");
+            byte[] key = rs.getBytes ("key");
+
+            while (next < sorted.length && SortKeys.compare (key, sorted[next].prefix) >= 0) {
+                sorted[next].start = rowid;
+                open.add (sorted[next]);
+                next++;
+            }
+
+            for (Iterator<Jump> it = open.iterator (); it.hasNext (); ) {
+                Jump jump = it.next ();
+
+                if (SortKeys.startsWith (key, jump.prefix)) {
+                    jump.count++;
+                } else {
+                    it.remove ();
+                }
+            }
+
+            lastRowid = rowid;
+        }
+
+        rs.close ();
+
+        // Past the end
+        for (; next < sorted.length; next++) {
+            sorted[next].start = lastRowid + 1;
+        }
+
+        stat.executeUpdate ("create table jumps (label text, prefix blob, start integer, count integer);");
+        stat.close ();
+
+        outputDB.setAutoCommit (false);
+
+        PreparedStatement prep = outputDB.prepareStatement (
+            "insert into jumps (label, prefix, start, count) values (?, ?, ?, ?)");
+
+        for (Jump jump : jumps) {
+            prep.setString (1, jump.label);
+            prep.setBytes (2, jump.prefix);
+            prep.setInt (3, jump.start);
+            prep.setInt (4, jump.count);
+            prep.executeUpdate ();
+        }
+
+        prep.close ();
+
+        outputDB.commit ();
+        outputDB.setAutoCommit (true);
+    }
+
+
+    /*
+     * Build a browse database from a stream of headings sorted by key.
+     */
+    public void createSorted (HeadingStream headings, String outputPath)
         throws Exception
     {
         Class.forName ("org.sqlite.JDBC");
         outputDB = DriverManager.getConnection ("jdbc:sqlite:" + outputPath);
 
-        setupDatabase ();
+        try {
+            setupDatabase (true);
 
-        BufferedReader br = new BufferedReader
-            (new FileReader (headingsFile));
+            long start = System.nanoTime ();
+            loadSortedHeadings (headings);
+            LOAD_TIME.addSince (start);
 
-        loadHeadings (br);
+            finishDatabase ();
+        } finally {
+            outputDB.close ();
+        }
+
+        BYTES.add (new File (outputPath).length ());
+    }
+
+
+    private void finishDatabase ()
+        throws Exception
+    {
+        long start = System.nanoTime ();
+        buildKeyIndex ();
+        buildHeadingIndex ();
+        INDEX_TIME.addSince (start);
+
+        start = System.nanoTime ();
+        buildJumpTable ();
+        JUMPS_TIME.addSince (start);
+    }
 
-        br.close ();
 
-        buildOrderedTables ();
+    public void create (String headingsFile, String outputPath)
+        throws Exception
+    {
+        HeadingStream headings = new HeadingFileReader (headingsFile);
+
+        if (Boolean.getBoolean ("browse.sort")) {
+            // Sort and de-duplicate the headings on the way in, rather than
+            // requiring a separate pass over the headings file.
+            HeadingSorter sorter = new HeadingSorter ();
+
+            try {
+                try {
+                    sorter.addAll (headings);
+                } finally {
+                    headings.close ();
+                }
+
+                headings = sorter.sorted ();
+            } finally {
+                sorter.close ();
+            }
+        }
+
+        try {
+            if (Boolean.getBoolean ("browse.sort") ||
+                Boolean.getBoolean ("browse.presorted")) {
+                createSorted (headings, outputPath);
+                return;
+            }
+
+            Class.forName ("org.sqlite.JDBC");
+            outputDB = DriverManager.getConnection ("jdbc:sqlite:" + outputPath);
+
+            setupDatabase (false);
+
+            long start = System.nanoTime ();
+            loadHeadings (headings);
+            LOAD_TIME.addSince (start);
+
+            start = System.nanoTime ();
+            buildOrderedTables ();
+            ORDER_TIME.addSince (start);
+
+            finishDatabase ();
+
+            BYTES.add (new File (outputPath).length ());
+        } finally {
+            headings.close ();
+        }
     }
 
 
@@ -153,6 +432,8 @@ public class CreateBrowseSQLite
 
         CreateBrowseSQLite self = new CreateBrowseSQLite ();
 
+        Progress.start ("CreateBrowseSQLite");
         self.create (args[0], args[1]);
+        Progress.finish ();
     }
 }
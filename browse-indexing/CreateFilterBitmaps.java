@@ -0,0 +1,226 @@
+//
+// Record, for each of a set of filters, which headings of a browse database
+// have at least one matching bib record.  The browse handler uses these to
+// page over just those headings when a request's fq matches a filter.
+//
+// Filters are given as field:value (e.g. building:main), and a request's fq
+// has to be exactly the same string to use one.  Each is stored as a
+// HeadingBitmap over heading rowids in the database's filter_bitmaps table,
+// so they have to be rebuilt whenever the database is.
+//
+// Usage: CreateFilterBitmaps <bib index> <bib field> <db file> <filter>...
+//
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.sql.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+import org.vufind.util.HeadingBitmap;
+import org.vufind.util.Progress;
+
+
+public class CreateFilterBitmaps
+{
+    private static final Charset UTF8 = Charset.forName ("UTF-8");
+
+    private static final Progress.Counter HEADINGS = Progress.counter ("filters.headings");
+    private static final Progress.Counter FILTER_TIME = Progress.timer ("filters.filter_docs");
+    private static final Progress.Counter MATCH_TIME = Progress.timer ("filters.match");
+
+
+    // Headings with records matching filter, as a counter name that reads
+    // cleanly in a progress line (so filter:"a b" becomes filter_a_b_).
+    private static Progress.Counter matchedCounter (String filter)
+    {
+        return Progress.counter ("filters.matched_" + filter.replaceAll ("[^A-Za-z0-9]", "_"));
+    }
+
+
+    // The live bib records matching field:value
+    private static FixedBitSet filterDocs (IndexReader reader, Bits liveDocs, String filter)
+        throws IOException
+    {
+        int colon = filter.indexOf (':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException ("Filters should look like field:value, not " +
+                                                filter);
+        }
+
+        String field = filter.substring (0, colon);
+        String value = filter.substring (colon + 1);
+
+        if (value.length () > 1 && value.startsWith ("\"") && value.endsWith ("\"")) {
+            value = value.substring (1, value.length () - 1);
+        }
+
+        FixedBitSet result = new FixedBitSet (reader.maxDoc ());
+
+        DocsEnum docs = MultiFields.getTermDocsEnum (reader, liveDocs, field,
+                                                     new BytesRef (value));
+
+        if (docs != null) {
+            int doc;
+            while ((doc = docs.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+                result.set (doc);
+            }
+        }
+
+        return result;
+    }
+
+
+    /*
+     * The filters a database already has bitmaps for.
+     */
+    public static List<String> existingFilters (String dbPath) throws Exception
+    {
+        List<String> result = new ArrayList<String> ();
+
+        Class.forName ("org.sqlite.JDBC");
+        Connection db = DriverManager.getConnection ("jdbc:sqlite:" + dbPath);
+
+        try {
+            Statement stmt = db.createStatement ();
+            ResultSet rs = stmt.executeQuery ("select name from sqlite_master " +
+                                              "where type = 'table' and name = 'filter_bitmaps'");
+            boolean exists = rs.next ();
+            rs.close ();
+
+            if (exists) {
+                rs = stmt.executeQuery ("select filter from filter_bitmaps");
+                while (rs.next ()) {
+                    result.add (rs.getString ("filter"));
+                }
+                rs.close ();
+            }
+
+            stmt.close ();
+        } finally {
+            db.close ();
+        }
+
+        return result;
+    }
+
+
+    public void create (String bibPath, String luceneField, String dbPath,
+                        List<String> filters)
+        throws Exception
+    {
+        IndexReader reader = DirectoryReader.open (FSDirectory.open (new File (bibPath)));
+
+        Class.forName ("org.sqlite.JDBC");
+        Connection db = DriverManager.getConnection ("jdbc:sqlite:" + dbPath);
+
+        try {
+            Bits liveDocs = MultiFields.getLiveDocs (reader);
+
+            FixedBitSet[] filterDocs = new FixedBitSet[filters.size ()];
+            HeadingBitmap.Builder[] bitmaps = new HeadingBitmap.Builder[filters.size ()];
+
+            long filterStart = System.nanoTime ();
+
+            for (int i = 0; i < filters.size (); i++) {
+                filterDocs[i] = filterDocs (reader, liveDocs, filters.get (i));
+                bitmaps[i] = new HeadingBitmap.Builder ();
+            }
+
+            FILTER_TIME.addSince (filterStart);
+
+            Terms terms = MultiFields.getTerms (reader, luceneField);
+            TermsEnum tenum = (terms != null) ? terms.iterator (null) : null;
+            DocsEnum docs = null;
+
+            boolean[] matched = new boolean[filters.size ()];
+
+            Statement stmt = db.createStatement ();
+            ResultSet rs = stmt.executeQuery ("select rowid, heading from headings order by rowid");
+
+            long matchStart = System.nanoTime ();
+
+            while (tenum != null && rs.next ()) {
+                HEADINGS.increment ();
+
+                int rowid = rs.getInt ("rowid");
+                BytesRef heading = new BytesRef (rs.getBytes ("heading"));
+
+                // Non-preferred authority headings aren't in the bib data,
+                // so never match.
+                if (tenum.seekCeil (heading) != TermsEnum.SeekStatus.FOUND) {
+                    continue;
+                }
+
+                Arrays.fill (matched, false);
+                int remaining = matched.length;
+
+                docs = tenum.docs (liveDocs, docs, DocsEnum.FLAG_NONE);
+
+                int doc;
+                while (remaining > 0 && (doc = docs.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+                    for (int i = 0; i < matched.length; i++) {
+                        if (!matched[i] && filterDocs[i].get (doc)) {
+                            matched[i] = true;
+                            remaining--;
+                            bitmaps[i].add (rowid);
+                        }
+                    }
+                }
+            }
+
+            rs.close ();
+
+            MATCH_TIME.addSince (matchStart);
+
+            stmt.executeUpdate ("create table if not exists filter_bitmaps " +
+                                "(filter text primary key, count integer, bitmap blob);");
+            stmt.close ();
+
+            db.setAutoCommit (false);
+
+            PreparedStatement prep = db.prepareStatement
+                ("insert or replace into filter_bitmaps (filter, count, bitmap) values (?, ?, ?)");
+
+            for (int i = 0; i < filters.size (); i++) {
+                prep.setString (1, filters.get (i));
+                prep.setInt (2, bitmaps[i].count ());
+                prep.setBytes (3, bitmaps[i].toByteArray ());
+                prep.executeUpdate ();
+
+                matchedCounter (filters.get (i)).add (bitmaps[i].count ());
+            }
+
+            prep.close ();
+            db.commit ();
+        } finally {
+            db.close ();
+            reader.close ();
+        }
+    }
+
+
+    public static void main (String args[])
+        throws Exception
+    {
+        if (args.length < 4) {
+            System.err.println
+                ("Usage: CreateFilterBitmaps <bib index> <bib field> <db file> "
+                 + "<filter> [<filter> ...]");
+            System.exit (0);
+        }
+
+        CreateFilterBitmaps self = new CreateFilterBitmaps ();
+
+        Progress.start ("CreateFilterBitmaps");
+        self.create (args[0], args[1], args[2],
+                     Arrays.asList (args).subList (3, args.length));
+        Progress.finish ();
+    }
+}
@@ -0,0 +1,381 @@
+//
+// Reads the headings files written by HeadingFileWriter, in either the text
+// or the binary format (see HeadingFileWriter for both).  The format is
+// detected from the start of the file.
+//
+// The file is memory mapped a window at a time and records are parsed
+// straight out of the mapped bytes: Base64 is decoded in place for the text
+// format, and nothing is built up a character at a time.  Compressed binary
+// files are inflated a block at a time and parsed the same way.
+//
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+
+
+public class HeadingFileReader implements HeadingStream
+{
+    private static final long WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final byte KEY_SEPARATOR = '\1';
+
+    private static final byte[] BASE64_VALUES = new byte[256];
+
+    static {
+        Arrays.fill (BASE64_VALUES, (byte) -1);
+
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length (); i++) {
+            BASE64_VALUES[alphabet.charAt (i)] = (byte) i;
+        }
+
+        // URL-safe variants, which Base64.decodeBase64 also accepted
+        BASE64_VALUES['-'] = 62;
+        BASE64_VALUES['_'] = 63;
+    }
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long fileSize;
+
+    // The bytes we're currently parsing records from: either a window of the
+    // mapped file starting at windowStart, or an inflated block.
+    private ByteBuffer buf;
+    private long windowStart;
+    private long windowSize = WINDOW_SIZE;
+
+    private boolean binary = false;
+    private boolean compressed = false;
+
+    // For compressed input
+    private long nextBlock;
+    private Inflater inflater;
+    private byte[] blockIn = new byte[0];
+    private byte[] blockOut = new byte[0];
+
+    private byte[] key;
+    private byte[] heading;
+
+
+    public HeadingFileReader (String headingsFile) throws IOException
+    {
+        file = new RandomAccessFile (headingsFile, "r");
+        channel = file.getChannel ();
+        fileSize = channel.size ();
+
+        map (0);
+
+        if (hasMagic ()) {
+            int version = buf.get (HeadingFileWriter.MAGIC.length);
+            int flags = buf.get (HeadingFileWriter.MAGIC.length + 1);
+
+            if (version != HeadingFileWriter.VERSION) {
+                throw new IOException ("Unsupported headings file version: " + version);
+            }
+
+            binary = true;
+            compressed = (flags & HeadingFileWriter.FLAG_COMPRESSED) != 0;
+
+            if (compressed) {
+                inflater = new Inflater ();
+                nextBlock = HeadingFileWriter.HEADER_LENGTH;
+                buf = ByteBuffer.wrap (blockOut);
+            } else {
+                buf.position (HeadingFileWriter.HEADER_LENGTH);
+            }
+        }
+    }
+
+
+    private boolean hasMagic ()
+    {
+        if (buf.remaining () < HeadingFileWriter.HEADER_LENGTH) {
+            return false;
+        }
+
+        for (int i = 0; i < HeadingFileWriter.MAGIC.length; i++) {
+            if (buf.get (i) != HeadingFileWriter.MAGIC[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    private void map (long start) throws IOException
+    {
+        windowStart = start;
+        buf = channel.map (FileChannel.MapMode.READ_ONLY,
+                           start,
+                           Math.min (windowSize, fileSize - start));
+    }
+
+
+    // Called when the current window ends part way through a record: map a
+    // new window starting at that record.  Returns false if there's no more
+    // of the file to map.
+    private boolean remap () throws IOException
+    {
+        long recordStart = windowStart + buf.position ();
+
+        if (recordStart + buf.remaining () >= fileSize) {
+            // Already have everything up to the end of the file.
+            return false;
+        }
+
+        if (recordStart == windowStart) {
+            // A record bigger than our window.  Unlikely, but cope.
+            windowSize *= 2;
+        }
+
+        map (recordStart);
+
+        return true;
+    }
+
+
+    // Inflate the next compressed block into buf.  False at end of file.
+    private boolean readBlock () throws IOException
+    {
+        if (nextBlock >= fileSize) {
+            return false;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate (8);
+        readFully (header, nextBlock);
+        header.flip ();
+
+        int rawLength = header.getInt ();
+        int compressedLength = header.getInt ();
+
+        if (blockIn.length < compressedLength) {
+            blockIn = new byte[compressedLength];
+        }
+
+        if (blockOut.length < rawLength) {
+            blockOut = new byte[rawLength];
+        }
+
+        readFully (ByteBuffer.wrap (blockIn, 0, compressedLength), nextBlock + 8);
+        nextBlock += 8 + compressedLength;
+
+        inflater.reset ();
+        inflater.setInput (blockIn, 0, compressedLength);
+
+        try {
+            int length = 0;
+            while (length < rawLength) {
+                int n = inflater.inflate (blockOut, length, rawLength - length);
+
+                if (n == 0 && (inflater.finished () || inflater.needsInput ())) {
+                    throw new IOException ("Truncated block in headings file");
+                }
+
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException ("Corrupt block in headings file", e);
+        }
+
+        buf = ByteBuffer.wrap (blockOut, 0, rawLength);
+
+        return true;
+    }
+
+
+    private void readFully (ByteBuffer target, long position) throws IOException
+    {
+        while (target.hasRemaining ()) {
+            int n = channel.read (target, position);
+
+            if (n < 0) {
+                throw new EOFException ("Truncated headings file");
+            }
+
+            position += n;
+        }
+    }
+
+
+    // Returns -1 if the buffer runs out part way through.
+    private static int readVarint (ByteBuffer b)
+    {
+        int result = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!b.hasRemaining ()) {
+                return -1;
+            }
+
+            int v = b.get ();
+            result |= (v & 0x7f) << shift;
+
+            if ((v & 0x80) == 0) {
+                return result;
+            }
+        }
+
+        return -1;
+    }
+
+
+    // Parse a binary record from buf.  If buf doesn't hold all of it, leave
+    // buf where it was and return false.
+    private boolean parseBinaryRecord ()
+    {
+        int start = buf.position ();
+
+        int keyLength = readVarint (buf);
+        if (keyLength >= 0 && keyLength <= buf.remaining ()) {
+            byte[] k = new byte[keyLength];
+            buf.get (k);
+
+            int headingLength = readVarint (buf);
+            if (headingLength >= 0 && headingLength <= buf.remaining ()) {
+                byte[] h = new byte[headingLength];
+                buf.get (h);
+
+                key = k;
+                heading = h;
+
+                return true;
+            }
+        }
+
+        buf.position (start);
+
+        return false;
+    }
+
+
+    private static byte[] decodeBase64 (ByteBuffer b, int from, int to)
+    {
+        byte[] out = new byte[((to - from) * 3) / 4];
+        int len = 0;
+
+        int bits = 0;
+        int bitCount = 0;
+
+        for (int i = from; i < to; i++) {
+            int ch = b.get (i) & 0xff;
+
+            if (ch == '=') {
+                break;
+            }
+
+            int v = BASE64_VALUES[ch];
+            if (v < 0) {
+                continue;
+            }
+
+            bits = (bits << 6) | v;
+            bitCount += 6;
+
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                out[len++] = (byte) (bits >> bitCount);
+                bits &= (1 << bitCount) - 1;
+            }
+        }
+
+        return (len == out.length) ? out : Arrays.copyOf (out, len);
+    }
+
+
+    // Parse a text record from buf.  Lines without a key separator are
+    // skipped.  Returns false, leaving buf where it was, if buf doesn't hold
+    // a complete line.
+    private boolean parseTextRecord ()
+    {
+        int limit = buf.limit ();
+
+        while (true) {
+            int start = buf.position ();
+            int sep = -1;
+            int eol = -1;
+
+            // Only a \r\n ends a record.  Anything else is part of the data.
+            for (int i = start; i < limit; i++) {
+                byte b = buf.get (i);
+
+                if (b == KEY_SEPARATOR && sep < 0) {
+                    sep = i;
+                } else if (b == '\r' && i + 1 < limit && buf.get (i + 1) == '\n') {
+                    eol = i;
+                    break;
+                }
+            }
+
+            if (eol < 0) {
+                return false;
+            }
+
+            buf.position (eol + 2);
+
+            if (sep >= 0) {
+                key = decodeBase64 (buf, start, sep);
+                heading = decodeBase64 (buf, sep + 1, eol);
+
+                return true;
+            }
+        }
+    }
+
+
+    public boolean next () throws IOException
+    {
+        while (true) {
+            boolean found = binary ? parseBinaryRecord () : parseTextRecord ();
+
+            if (found) {
+                return true;
+            }
+
+            boolean more;
+            if (compressed) {
+                if (buf.hasRemaining ()) {
+                    throw new IOException ("Record spans blocks in headings file");
+                }
+
+                more = readBlock ();
+            } else {
+                more = remap ();
+            }
+
+            if (!more) {
+                // EOF.  Show's over.
+                key = null;
+                heading = null;
+
+                return false;
+            }
+        }
+    }
+
+
+    public byte[] key ()
+    {
+        return key;
+    }
+
+
+    public byte[] heading ()
+    {
+        return heading;
+    }
+
+
+    public void close () throws IOException
+    {
+        if (inflater != null) {
+            inflater.end ();
+        }
+
+        channel.close ();
+        file.close ();
+    }
+}
@@ -0,0 +1,181 @@
+//
+// Writes headings files in the formats read by HeadingFileReader.
+//
+// The text format has one Base64-encoded sort key and Base64-encoded heading
+// per record, separated by a \1 and terminated by a \r\n.  It's what GNU sort
+// expects.
+//
+// The binary format is a header (the magic bytes 0xFF "VFBH", a version byte
+// and a flags byte) followed by records of the form:
+//
+//   <key length varint> <key bytes> <heading length varint> <heading bytes>
+//
+// With FLAG_COMPRESSED set, the records are grouped into blocks of roughly
+// BLOCK_SIZE bytes, each written as its uncompressed length, its compressed
+// length (both 4-byte big-endian ints) and the deflated records.  A record
+// never spans blocks.
+//
+// The format is chosen by the browse.format system property ("text", the
+// default, or "binary"), and binary output is compressed if browse.compress
+// is true.
+//
+
+import java.io.*;
+import java.util.zip.*;
+
+import org.vufind.util.Progress;
+
+// Note that this version is coming from Solr!
+import org.apache.commons.codec.binary.Base64;
+
+
+public class HeadingFileWriter
+{
+    // 0xFF can't start a line of Base64, so no text file looks like this
+    static final byte[] MAGIC = { (byte) 0xFF, 'V', 'F', 'B', 'H' };
+    static final int VERSION = 1;
+    static final int FLAG_COMPRESSED = 1;
+    static final int HEADER_LENGTH = MAGIC.length + 2;
+
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final Progress.Counter BYTES = Progress.counter ("write.bytes");
+
+    private static final byte KEY_SEPARATOR = '\1';
+    private static final byte[] RECORD_SEPARATOR = { '\r', '\n' };
+
+    private DataOutputStream out;
+    private boolean binary;
+
+    // For compressed output
+    private ByteArrayOutputStream block;
+    private Deflater deflater;
+    private byte[] deflated;
+
+
+    public HeadingFileWriter (String headingsFile) throws IOException
+    {
+        this (headingsFile,
+              "binary".equals (System.getProperty ("browse.format", "text")),
+              Boolean.getBoolean ("browse.compress"));
+    }
+
+
+    public HeadingFileWriter (String headingsFile, boolean binary, boolean compressed)
+        throws IOException
+    {
+        this.binary = binary;
+
+        out = new DataOutputStream
+            (new BufferedOutputStream (new CountingOutputStream (new FileOutputStream (headingsFile)),
+                                       65536));
+
+        if (binary) {
+            out.write (MAGIC);
+            out.write (VERSION);
+            out.write (compressed ? FLAG_COMPRESSED : 0);
+
+            if (compressed) {
+                block = new ByteArrayOutputStream (BLOCK_SIZE + 4096);
+                deflater = new Deflater (Deflater.BEST_SPEED);
+                deflated = new byte[BLOCK_SIZE];
+            }
+        }
+    }
+
+
+    // Counts bytes as they reach the file
+    private static class CountingOutputStream extends FilterOutputStream
+    {
+        CountingOutputStream (OutputStream out)
+        {
+            super (out);
+        }
+
+
+        public void write (int b) throws IOException
+        {
+            out.write (b);
+            BYTES.increment ();
+        }
+
+
+        public void write (byte[] b, int off, int len) throws IOException
+        {
+            out.write (b, off, len);
+            BYTES.add (len);
+        }
+    }
+
+
+    private static void writeVarint (OutputStream target, int value) throws IOException
+    {
+        while ((value & ~0x7f) != 0) {
+            target.write ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+
+        target.write (value);
+    }
+
+
+    private void flushBlock () throws IOException
+    {
+        if (block.size () == 0) {
+            return;
+        }
+
+        byte[] raw = block.toByteArray ();
+        block.reset ();
+
+        deflater.reset ();
+        deflater.setInput (raw);
+        deflater.finish ();
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream (raw.length / 2);
+        while (!deflater.finished ()) {
+            int len = deflater.deflate (deflated);
+            compressed.write (deflated, 0, len);
+        }
+
+        out.writeInt (raw.length);
+        out.writeInt (compressed.size ());
+        compressed.writeTo (out);
+    }
+
+
+    public void write (byte[] key, byte[] heading) throws IOException
+    {
+        if (!binary) {
+            // Output a delimited key/value pair, base64-encoding both strings
+            // to ensure that no characters overlap with the delimiter or introduce
+            // \n's that could interfere with line-based sorting of the file.
+            out.write (Base64.encodeBase64 (key));
+            out.write (KEY_SEPARATOR);
+            out.write (Base64.encodeBase64 (heading));
+            out.write (RECORD_SEPARATOR);
+        } else {
+            OutputStream target = (block != null) ? block : out;
+
+            writeVarint (target, key.length);
+            target.write (key);
+            writeVarint (target, heading.length);
+            target.write (heading);
+
+            if (block != null && block.size () >= BLOCK_SIZE) {
+                flushBlock ();
+            }
+        }
+    }
+
+
+    public void close () throws IOException
+    {
+        if (block != null) {
+            flushBlock ();
+            deflater.end ();
+        }
+
+        out.close ();
+    }
+}
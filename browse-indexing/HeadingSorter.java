@@ -0,0 +1,435 @@
+//
+// An external merge sort for browse headings.
+//
+// Records are gathered into batches sized to fit within a memory budget.  Full
+// batches are sorted and de-duplicated by a pool of worker threads and spilled
+// to temporary run files, which are then k-way merged on the raw sort key
+// bytes.  If everything fits in a single batch, nothing touches the disk.
+//
+// Records are ordered by sort key, then by heading, and duplicate (key,
+// heading) pairs are dropped--the same result as running the headings file
+// through `sort -u`, but ordered on the keys themselves rather than their
+// Base64 encoding.
+//
+// Close the sorter when done with it (in a finally block) to remove any run
+// files left behind by a failure before `sorted` was called.
+//
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.vufind.util.SortKeys;
+
+
+public class HeadingSorter
+{
+    // A rough allowance for the per-record object and array headers
+    private static final int RECORD_OVERHEAD = 64;
+
+    private static final int MIN_BATCH_BYTES = 1024 * 1024;
+
+    private long batchBytes;
+    private File tmpDir;
+
+    private ExecutorService workers;
+    private Semaphore batchPermits;
+
+    private List<Record> batch = new ArrayList<Record> ();
+    private long batchSize = 0;
+
+    private List<Future<File>> runs = new ArrayList<Future<File>> ();
+
+
+    static class Record
+    {
+        byte[] key;
+        byte[] heading;
+
+        Record (byte[] key, byte[] heading)
+        {
+            this.key = key;
+            this.heading = heading;
+        }
+    }
+
+
+    /*
+     * The order headings are sorted into: by key, then by heading.
+     */
+    static int compare (byte[] keyA, byte[] headingA, byte[] keyB, byte[] headingB)
+    {
+        int result = SortKeys.compare (keyA, keyB);
+
+        if (result == 0) {
+            result = SortKeys.compare (headingA, headingB);
+        }
+
+        return result;
+    }
+
+
+    static final Comparator<Record> ORDER = new Comparator<Record> () {
+        public int compare (Record a, Record b)
+        {
+            return HeadingSorter.compare (a.key, a.heading, b.key, b.heading);
+        }
+    };
+
+
+    /*
+     * Create a sorter configured by the browse.sort.* system properties:
+     *
+     *   browse.sort.memory  -- memory budget in MB (default: half the max heap)
+     *   browse.sort.threads -- run generation threads (default: one per CPU)
+     *   browse.sort.tmpdir  -- where run files go (default: java.io.tmpdir)
+     */
+    public HeadingSorter ()
+    {
+        this (Long.getLong ("browse.sort.memory",
+                            Runtime.getRuntime ().maxMemory () / (2 * 1024 * 1024))
+              * 1024 * 1024,
+              Integer.getInteger ("browse.sort.threads",
+                                  Runtime.getRuntime ().availableProcessors ()),
+              new File (System.getProperty ("browse.sort.tmpdir",
+                                            System.getProperty ("java.io.tmpdir"))));
+    }
+
+
+    public HeadingSorter (long memoryBudget, int threads, File tmpDir)
+    {
+        threads = Math.max (1, threads);
+
+        // The budget covers the batch being filled plus one being sorted by
+        // each worker.
+        this.batchBytes = Math.max (MIN_BATCH_BYTES, memoryBudget / (threads + 1));
+        this.tmpDir = tmpDir;
+
+        batchPermits = new Semaphore (threads);
+
+        // Daemons, so that a sort abandoned part way through doesn't keep
+        // the JVM alive
+        workers = Executors.newFixedThreadPool (threads, new ThreadFactory () {
+                public Thread newThread (Runnable r)
+                {
+                    Thread t = new Thread (r, "heading-sorter");
+                    t.setDaemon (true);
+                    return t;
+                }
+            });
+    }
+
+
+    public void add (byte[] key, byte[] heading) throws IOException
+    {
+        batch.add (new Record (key, heading));
+        batchSize += key.length + heading.length + RECORD_OVERHEAD;
+
+        if (batchSize >= batchBytes) {
+            spill ();
+        }
+    }
+
+
+    public void addAll (HeadingStream in) throws IOException
+    {
+        while (in.next ()) {
+            add (in.key (), in.heading ());
+        }
+    }
+
+
+    private static List<Record> sortBatch (List<Record> records)
+    {
+        Record[] sorted = records.toArray (new Record[records.size ()]);
+        Arrays.sort (sorted, ORDER);
+
+        List<Record> result = new ArrayList<Record> (sorted.length);
+        Record last = null;
+
+        for (Record r : sorted) {
+            if (last == null || ORDER.compare (last, r) != 0) {
+                result.add (r);
+                last = r;
+            }
+        }
+
+        return result;
+    }
+
+
+    private File writeRun (List<Record> records) throws IOException
+    {
+        File run = File.createTempFile ("headings", ".run", tmpDir);
+
+        DataOutputStream out = new DataOutputStream
+            (new BufferedOutputStream (new FileOutputStream (run), 65536));
+
+        try {
+            for (Record r : records) {
+                out.writeInt (r.key.length);
+                out.write (r.key);
+                out.writeInt (r.heading.length);
+                out.write (r.heading);
+            }
+
+            out.close ();
+        } catch (IOException e) {
+            out.close ();
+            run.delete ();
+            throw e;
+        }
+
+        return run;
+    }
+
+
+    // Hand the current batch to a worker to be sorted and written out.  Blocks
+    // while all workers are busy, which is what keeps us within budget.
+    private void spill () throws IOException
+    {
+        final List<Record> full = batch;
+
+        batch = new ArrayList<Record> ();
+        batchSize = 0;
+
+        try {
+            batchPermits.acquire ();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException ("Interrupted while sorting headings");
+        }
+
+        runs.add (workers.submit (new Callable<File> () {
+                public File call () throws Exception
+                {
+                    try {
+                        return writeRun (sortBatch (full));
+                    } finally {
+                        batchPermits.release ();
+                    }
+                }
+            }));
+    }
+
+
+    private List<File> waitForRuns () throws IOException
+    {
+        List<File> files = new ArrayList<File> ();
+        IOException failure = null;
+
+        for (Future<File> run : runs) {
+            try {
+                files.add (run.get ());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = new IOException ("Failed to write a sorted run", e.getCause ());
+                }
+            } catch (InterruptedException e) {
+                if (failure == null) {
+                    failure = new InterruptedIOException ("Interrupted while sorting headings");
+                }
+            }
+        }
+
+        if (failure != null) {
+            for (File f : files) {
+                f.delete ();
+            }
+
+            throw failure;
+        }
+
+        return files;
+    }
+
+
+    /*
+     * Finish sorting and return the records in order.  The sorter can't be
+     * added to after this.  Closing the returned stream cleans up any
+     * temporary files.
+     */
+    public HeadingStream sorted () throws IOException
+    {
+        try {
+            if (runs.isEmpty ()) {
+                return new ListStream (sortBatch (batch));
+            }
+
+            if (!batch.isEmpty ()) {
+                spill ();
+            }
+
+            MergeStream merged = new MergeStream (waitForRuns ());
+
+            // The stream owns the run files from here on
+            runs.clear ();
+
+            return merged;
+        } finally {
+            batch = null;
+            workers.shutdown ();
+        }
+    }
+
+
+    /*
+     * Stop the workers and delete any run files not handed over by
+     * sorted.  Safe to call more than once, and after sorted.
+     */
+    public void close ()
+    {
+        batch = null;
+        workers.shutdown ();
+
+        // At most one batch per worker is in flight, so this doesn't wait
+        // long.
+        for (Future<File> run : runs) {
+            try {
+                run.get ().delete ();
+            } catch (Exception e) {
+                // Never written, or already cleaned up by waitForRuns
+            }
+        }
+
+        runs.clear ();
+    }
+
+
+
+    private static class ListStream implements HeadingStream
+    {
+        private Iterator<Record> it;
+        private Record current;
+
+        ListStream (List<Record> records)
+        {
+            it = records.iterator ();
+        }
+
+        public boolean next ()
+        {
+            current = it.hasNext () ? it.next () : null;
+            return (current != null);
+        }
+
+        public byte[] key () { return current.key; }
+        public byte[] heading () { return current.heading; }
+
+        public void close () { }
+    }
+
+
+
+    private static class RunReader
+    {
+        File file;
+        DataInputStream in;
+        Record current;
+
+        RunReader (File file) throws IOException
+        {
+            this.file = file;
+            in = new DataInputStream
+                (new BufferedInputStream (new FileInputStream (file), 65536));
+        }
+
+        private byte[] readBytes () throws IOException
+        {
+            byte[] result = new byte[in.readInt ()];
+            in.readFully (result);
+            return result;
+        }
+
+        boolean advance () throws IOException
+        {
+            try {
+                byte[] key = readBytes ();
+                current = new Record (key, readBytes ());
+                return true;
+            } catch (EOFException e) {
+                current = null;
+                return false;
+            }
+        }
+
+        void close () throws IOException
+        {
+            in.close ();
+            file.delete ();
+        }
+    }
+
+
+
+    private static class MergeStream implements HeadingStream
+    {
+        private List<RunReader> readers = new ArrayList<RunReader> ();
+        private PriorityQueue<RunReader> queue;
+        private Record current;
+
+
+        MergeStream (List<File> runFiles) throws IOException
+        {
+            queue = new PriorityQueue<RunReader>
+                (Math.max (1, runFiles.size ()),
+                 new Comparator<RunReader> () {
+                    public int compare (RunReader a, RunReader b)
+                    {
+                        return ORDER.compare (a.current, b.current);
+                    }
+                });
+
+            try {
+                for (File f : runFiles) {
+                    RunReader reader = new RunReader (f);
+                    readers.add (reader);
+
+                    if (reader.advance ()) {
+                        queue.add (reader);
+                    }
+                }
+            } catch (IOException e) {
+                close ();
+                throw e;
+            }
+        }
+
+
+        public boolean next () throws IOException
+        {
+            while (!queue.isEmpty ()) {
+                RunReader reader = queue.poll ();
+                Record r = reader.current;
+
+                if (reader.advance ()) {
+                    queue.add (reader);
+                }
+
+                // Runs are already de-duplicated, but the same record may
+                // turn up in several of them.
+                if (current == null || ORDER.compare (current, r) != 0) {
+                    current = r;
+                    return true;
+                }
+            }
+
+            current = null;
+            return false;
+        }
+
+
+        public byte[] key () { return current.key; }
+        public byte[] heading () { return current.heading; }
+
+
+        public void close () throws IOException
+        {
+            for (RunReader reader : readers) {
+                reader.close ();
+            }
+
+            readers.clear ();
+            queue.clear ();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+//
+// A sequence of (sort key, heading) records, as found in a headings file.
+//
+
+import java.io.*;
+
+
+public interface HeadingStream
+{
+    // Advance to the next record.  Returns false once the input is exhausted.
+    boolean next () throws IOException;
+
+    // The sort key of the current record.
+    byte[] key ();
+
+    // The UTF-8 bytes of the current record's heading.
+    byte[] heading ();
+
+    void close () throws IOException;
+}
@@ -1,62 +1,102 @@
 import org.apache.lucene.store.*;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
 import java.io.*;
 import java.util.*;
 
 import org.vufind.util.BrowseEntry;
 import org.vufind.util.Normalizer;
 import org.vufind.util.NormalizerFactory;
+import org.vufind.util.Progress;
 
 
 public class Leech
 {
+    static final Progress.Counter TERMS_SCANNED = Progress.counter ("leech.terms_scanned");
+    static final Progress.Counter TERMS_DELETED = Progress.counter ("leech.terms_deleted");
+    static final Progress.Counter HEADINGS = Progress.counter ("leech.headings");
+
     protected CompositeReader reader;
     protected IndexSearcher searcher;
 
-    private String field;
-    private Normalizer normalizer;
+    protected String field;
+    private ThreadLocal<Normalizer> normalizer;
+
+    // Whether we opened the reader (and so should close it)
+    private boolean ownReader;
 
     TermsEnum tenum = null;
+    Bits liveDocs = null;
+    DocsEnum docsEnum = null;
 
 
     public Leech (String indexPath,
                   String field) throws Exception
     {
-        reader = DirectoryReader.open (FSDirectory.open (new File (indexPath)));
+        this (DirectoryReader.open (FSDirectory.open (new File (indexPath))), field);
+        ownReader = true;
+    }
+
+
+    // Read from an index that's already open, e.g. one shared by several
+    // leeches pulling out different fields.  The caller closes it.
+    public Leech (CompositeReader reader,
+                  String field) throws Exception
+    {
+        this.reader = reader;
         searcher = new IndexSearcher (reader);
         this.field = field;
 
 
-        String normalizerClass = System.getProperty("browse.normalizer");
-        if (normalizerClass == null) {
-            normalizer = NormalizerFactory.getNormalizer();
-        } else {
-            normalizer = NormalizerFactory.getNormalizer(normalizerClass);
-        }
+        final String normalizerClass = System.getProperty("browse.normalizer");
+
+        // Normalizers (and the collators behind them) aren't thread-safe, so
+        // each thread building sort keys gets its own.
+        normalizer = new ThreadLocal<Normalizer> () {
+            protected Normalizer initialValue ()
+            {
+                try {
+                    if (normalizerClass == null) {
+                        return NormalizerFactory.getNormalizer();
+                    } else {
+                        return NormalizerFactory.getNormalizer(normalizerClass);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException ("Failed to create normalizer", e);
+                }
+            }
+        };
+
+        // Fail now rather than on the first heading
+        normalizer.get ();
     }
 
 
+    // Safe to call from any thread.
     public byte[] buildSortKey (String heading)
     {
-        return normalizer.normalize (heading);
+        return normalizer.get ().normalize (heading);
     }
 
 
     public void dropOff () throws IOException
     {
-        reader.close ();
+        if (ownReader) {
+            reader.close ();
+        }
     }
 
 
-    private boolean termExists (String t)
+    public BrowseEntry next () throws Exception
     {
-        try {
-            return (this.searcher.search (new ConstantScoreQuery(new TermQuery (new Term(this.field, t))),
-                                          1).totalHits > 0);
-        } catch (IOException e) {
-            return false;
+        RawHeading h = nextHeading ();
+
+        if (h == null) {
+            return null;
         }
+
+        return new BrowseEntry (buildSortKey (h.sortText), h.value);
     }
 
 
@@ -64,7 +104,13 @@ public class Leech
     //
     // If there's no currently selected TermEnum, create one from the reader.
     //
-    public BrowseEntry next () throws Exception
+    // Terms whose documents have all been deleted are skipped.  If the index
+    // has no deletions there's nothing to check.
+    //
+    // The sort key isn't built here, leaving callers free to build it on
+    // another thread.
+    //
+    public RawHeading nextHeading () throws Exception
     {
         if (tenum == null) {
             AtomicReader ir = SlowCompositeReaderWrapper.wrap(reader);
@@ -73,18 +119,28 @@ public class Leech
                 return null;
             }
             tenum = terms.iterator(null);
+            liveDocs = ir.getLiveDocs();
         }
 
-        if (tenum.next() != null) {
-            String termText = tenum.term().utf8ToString();
+        while (tenum.next() != null) {
+            TERMS_SCANNED.increment ();
+
+            if (liveDocs != null) {
+                docsEnum = tenum.docs(liveDocs, docsEnum, DocsEnum.FLAG_NONE);
 
-            if (termExists(termText)) {
-                return new BrowseEntry (buildSortKey (termText), termText) ;
-            } else {
-                return this.next();
+                if (docsEnum.nextDoc() == DocIdSetIterator.NO_MORE_DOCS) {
+                    TERMS_DELETED.increment ();
+                    continue;
+                }
             }
-        } else {
-            return null;
+
+            HEADINGS.increment ();
+
+            String termText = tenum.term().utf8ToString();
+
+            return new RawHeading (termText, termText);
         }
+
+        return null;
     }
 }
@@ -0,0 +1,202 @@
+// Pull the terms of a field from each segment of an index on its own worker
+// thread, merging the per-segment streams back into term order and removing
+// duplicates.  Produces the same headings as Leech.
+//
+// Each worker drops the terms that have no live documents in its segment, so
+// a term is kept if it's live in any segment.
+//
+// Enable with BIBLEECH=ParallelLeech.  The number of worker threads comes from
+// the browse.leech.threads system property (default: one per CPU).
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+public class ParallelLeech extends Leech
+{
+    // Number of terms a worker reads from a segment in one go
+    private static final int BATCH_SIZE = 1024;
+
+    private ExecutorService workers;
+    private PriorityQueue<SegmentTerms> queue;
+    private BytesRef lastTerm;
+
+
+    public ParallelLeech (String indexPath,
+                          String field) throws Exception
+    {
+        super (indexPath, field);
+    }
+
+
+    public ParallelLeech (CompositeReader reader,
+                          String field) throws Exception
+    {
+        super (reader, field);
+    }
+
+
+    // The terms of a single segment.  Batches are fetched by a worker one
+    // ahead of where the merge is up to, so a segment's TermsEnum is only
+    // ever used by one thread at a time.
+    private class SegmentTerms
+    {
+        TermsEnum tenum;
+        Bits liveDocs;
+        DocsEnum docsEnum;
+        Future<List<BytesRef>> pending;
+        List<BytesRef> batch = Collections.emptyList ();
+        int pos = 0;
+
+        SegmentTerms (TermsEnum tenum, Bits liveDocs)
+        {
+            this.tenum = tenum;
+            this.liveDocs = liveDocs;
+            fetch ();
+        }
+
+        void fetch ()
+        {
+            pending = workers.submit (new Callable<List<BytesRef>> () {
+                    public List<BytesRef> call () throws IOException
+                    {
+                        List<BytesRef> result = new ArrayList<BytesRef> (BATCH_SIZE);
+                        int deleted = 0;
+
+                        while (result.size () < BATCH_SIZE && tenum.next () != null) {
+                            // No deletions in this segment means nothing to check
+                            if (liveDocs != null) {
+                                docsEnum = tenum.docs (liveDocs, docsEnum, DocsEnum.FLAG_NONE);
+
+                                if (docsEnum.nextDoc () == DocIdSetIterator.NO_MORE_DOCS) {
+                                    deleted++;
+                                    continue;
+                                }
+                            }
+
+                            result.add (BytesRef.deepCopyOf (tenum.term ()));
+                        }
+
+                        // Per segment, so a term in several segments is
+                        // scanned more than once.
+                        TERMS_SCANNED.add (result.size () + deleted);
+                        TERMS_DELETED.add (deleted);
+
+                        return result;
+                    }
+                });
+        }
+
+        BytesRef current ()
+        {
+            return batch.get (pos);
+        }
+
+        // Move to the next term, returning false once the segment is done.
+        boolean advance () throws Exception
+        {
+            pos++;
+
+            if (pos < batch.size ()) {
+                return true;
+            }
+
+            // The last batch was short, so the TermsEnum has run out
+            if (pending == null) {
+                return false;
+            }
+
+            try {
+                batch = pending.get ();
+            } catch (ExecutionException e) {
+                throw new IOException ("Failed to read terms from segment", e.getCause ());
+            }
+
+            pos = 0;
+            pending = null;
+
+            if (batch.size () == BATCH_SIZE) {
+                fetch ();
+            }
+
+            return !batch.isEmpty ();
+        }
+    }
+
+
+    private void startWorkers () throws Exception
+    {
+        workers = Executors.newFixedThreadPool
+            (Math.max (1, Integer.getInteger ("browse.leech.threads",
+                                              Runtime.getRuntime ().availableProcessors ())));
+
+        queue = new PriorityQueue<SegmentTerms>
+            (Math.max (1, reader.leaves ().size ()),
+             new Comparator<SegmentTerms> () {
+                public int compare (SegmentTerms a, SegmentTerms b)
+                {
+                    return a.current ().compareTo (b.current ());
+                }
+            });
+
+        for (AtomicReaderContext leaf : reader.leaves ()) {
+            Terms terms = leaf.reader ().terms (field);
+
+            if (terms != null) {
+                SegmentTerms segment = new SegmentTerms (terms.iterator (null),
+                                                         leaf.reader ().getLiveDocs ());
+
+                if (segment.advance ()) {
+                    queue.add (segment);
+                }
+            }
+        }
+    }
+
+
+    public RawHeading nextHeading () throws Exception
+    {
+        if (workers == null) {
+            startWorkers ();
+        }
+
+        while (!queue.isEmpty ()) {
+            SegmentTerms segment = queue.poll ();
+            BytesRef term = segment.current ();
+
+            if (segment.advance ()) {
+                queue.add (segment);
+            }
+
+            if (lastTerm != null && lastTerm.equals (term)) {
+                // Already seen in an earlier segment
+                continue;
+            }
+
+            lastTerm = term;
+
+            HEADINGS.increment ();
+
+            String termText = term.utf8ToString ();
+
+            return new RawHeading (termText, termText);
+        }
+
+        return null;
+    }
+
+
+    public void dropOff () throws IOException
+    {
+        if (workers != null) {
+            workers.shutdownNow ();
+        }
+
+        super.dropOff ();
+    }
+}
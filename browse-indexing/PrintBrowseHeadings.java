@@ -6,6 +6,7 @@ import java.io.*;
 import java.util.*;
 import java.util.regex.*;
 import java.nio.charset.*;
+import java.util.concurrent.*;
 
 import org.apache.lucene.store.*;
 import org.apache.lucene.search.*;
@@ -15,115 +16,207 @@ import org.apache.lucene.document.*;
 import java.sql.*;
 
 import org.vufind.util.BrowseEntry;
-
-// Note that this version is coming from Solr!
-import org.apache.commons.codec.binary.Base64;
+import org.vufind.util.Progress;
 
 
 public class PrintBrowseHeadings
 {
-    private Leech bibLeech;
-    private Leech authLeech;
-    private Leech nonprefAuthLeech;
+    // Number of headings handed to a normalization worker at a time
+    private static final int BATCH_SIZE = 1000;
+
+    private static final Charset UTF8 = Charset.forName ("UTF-8");
 
-    IndexSearcher bibSearcher;
-    IndexSearcher authSearcher;
+    // Where the time goes: pulling headings from the leech, building sort
+    // keys (added up over all the workers) and writing the output.
+    private static final Progress.Counter LEECH_TIME = Progress.timer ("print.leech");
+    private static final Progress.Counter NORMALIZE_TIME = Progress.timer ("print.normalize");
+    private static final Progress.Counter WRITE_TIME = Progress.timer ("print.write");
 
-    private String luceneField;
+    private static final Progress.Counter NORMALIZED = Progress.counter ("print.normalized");
+    private static final Progress.Counter REJECTED = Progress.counter ("print.rejected");
+    private static final Progress.Counter WRITTEN = Progress.counter ("print.headings_written");
 
-    private String KEY_SEPARATOR = "\1";
-    private String RECORD_SEPARATOR = "\r\n";
 
     /**
-     * Load headings from the index into a file.
-     *
-     * @param leech     Leech for pulling in headings
-     * @param out       Output target
-     * @param predicate Optional Predicate for filtering headings
+     * Build sort keys for a batch of headings, dropping any rejected by the
+     * predicate.
      */
-    private void loadHeadings (Leech leech,
-                               PrintWriter out,
-                               Predicate predicate)
-        throws Exception
+    private static List<BrowseEntry> normalizeBatch (Leech leech,
+                                                     List<RawHeading> batch,
+                                                     Predicate predicate)
     {
-        BrowseEntry h;
-        while ((h = leech.next ()) != null) {
-            // We use a byte array for the sort key instead of a string to ensure
-            // consistent sorting even if the index tool and browse handler are running
-            // with different locale settings. Using strings results in less predictable
-            // behavior.
-            byte[] sort_key = h.key;
-            String heading = h.value;
+        long start = System.nanoTime ();
 
+        List<BrowseEntry> result = new ArrayList<BrowseEntry> (batch.size ());
+
+        for (RawHeading h : batch) {
             if (predicate != null &&
-                !predicate.isSatisfiedBy (heading)) {
+                !predicate.isSatisfiedBy (h.value)) {
                 continue;
             }
 
+            // We use a byte array for the sort key instead of a string to ensure
+            // consistent sorting even if the index tool and browse handler are running
+            // with different locale settings. Using strings results in less predictable
+            // behavior.
+            byte[] sort_key = leech.buildSortKey (h.sortText);
+
             if (sort_key != null) {
-                // Output a delimited key/value pair, base64-encoding both strings
-                // to ensure that no characters overlap with the delimiter or introduce
-                // \n's that could interfere with line-based sorting of the file.
-                out.print (new String (Base64.encodeBase64 (sort_key)) +
-                           KEY_SEPARATOR +
-                           new String (Base64.encodeBase64 (heading.getBytes(Charset.forName("UTF-8")))) +
-                           RECORD_SEPARATOR);
+                result.add (new BrowseEntry (sort_key, h.value));
             }
         }
-    }
 
+        NORMALIZE_TIME.addSince (start);
+        NORMALIZED.add (batch.size ());
+        REJECTED.add (batch.size () - result.size ());
 
-    private int bibCount (String heading) throws IOException
-    {
-        TotalHitCountCollector counter = new TotalHitCountCollector();
+        return result;
+    }
 
-        bibSearcher.search (new ConstantScoreQuery(new TermQuery (new Term (luceneField, heading))),
-                            counter);
 
-        return counter.getTotalHits ();
+    // A batch whose result is already known.  Used to mark the end of the
+    // headings, or to pass an enumeration failure along to the output stage.
+    private static Future<List<BrowseEntry>> completedBatch (Callable<List<BrowseEntry>> result)
+    {
+        FutureTask<List<BrowseEntry>> task = new FutureTask<List<BrowseEntry>> (result);
+        task.run ();
+        return task;
     }
 
 
-    private boolean isLinkedFromBibData (String heading)
-        throws IOException
+    /**
+     * Load headings from the index into a file.
+     *
+     * This runs as a pipeline: one thread pulls headings from the leech in
+     * batches, a pool of workers builds their sort keys (the expensive bit)
+     * and the calling thread writes the batches out in the order they were
+     * read, so the output is the same however many workers there are.  The
+     * queue between the stages is bounded to keep memory use in check.
+     *
+     * The workers come from the normalizers pool, which may be shared with
+     * other fields being loaded at the same time.
+     *
+     * @param leech       Leech for pulling in headings
+     * @param out         Output target
+     * @param predicate   Optional Predicate for filtering headings
+     * @param normalizers Pool for building sort keys
+     */
+    private void loadHeadings (final Leech leech,
+                               HeadingFileWriter out,
+                               final Predicate predicate,
+                               final ExecutorService normalizers)
+        throws Exception
     {
-        TopDocs hits = null;
-
-        int max_headings = 20;
-        while (true) {
-            hits = authSearcher.search
-                (new ConstantScoreQuery
-                 (new TermQuery
-                  (new Term
-                   (System.getProperty ("field.insteadof", "insteadOf"),
-                    heading))),
-                 max_headings);
-
-            if (hits.scoreDocs.length < max_headings) {
-                // That's all of them.  All done.
-                break;
-            } else {
-                // Hm.  That's a lot of headings.  Go back for more.
-                max_headings *= 2;
-            }
-        }
+        int threads = normalizerThreads ();
+
+        final BlockingQueue<Future<List<BrowseEntry>>> batches =
+            new ArrayBlockingQueue<Future<List<BrowseEntry>>> (threads * 2);
+
+        Thread enumerator = new Thread ("heading enumerator") {
+                public void run ()
+                {
+                    try {
+                        try {
+                            List<RawHeading> batch = new ArrayList<RawHeading> (BATCH_SIZE);
+                            RawHeading h;
+
+                            long start = System.nanoTime ();
+
+                            while ((h = leech.nextHeading ()) != null) {
+                                batch.add (h);
+
+                                if (batch.size () == BATCH_SIZE) {
+                                    // Not counting time spent waiting for
+                                    // the other stages
+                                    LEECH_TIME.addSince (start);
+                                    batches.put (submitBatch (batch));
+                                    batch = new ArrayList<RawHeading> (BATCH_SIZE);
+                                    start = System.nanoTime ();
+                                }
+                            }
+
+                            LEECH_TIME.addSince (start);
+
+                            if (!batch.isEmpty ()) {
+                                batches.put (submitBatch (batch));
+                            }
+
+                            batches.put (completedBatch (new Callable<List<BrowseEntry>> () {
+                                    public List<BrowseEntry> call () { return null; }
+                                }));
+                        } catch (final Throwable e) {
+                            // Errors too, or the output stage would wait
+                            // forever for a batch that isn't coming
+                            batches.put (completedBatch (new Callable<List<BrowseEntry>> () {
+                                    public List<BrowseEntry> call () throws Exception
+                                    {
+                                        if (e instanceof Error) {
+                                            throw (Error) e;
+                                        }
+
+                                        throw (e instanceof Exception) ?
+                                            (Exception) e : new Exception (e);
+                                    }
+                                }));
+                        }
+                    } catch (InterruptedException e) {
+                        // The output stage has given up
+                    }
+                }
+
+                private Future<List<BrowseEntry>> submitBatch (final List<RawHeading> batch)
+                {
+                    return normalizers.submit (new Callable<List<BrowseEntry>> () {
+                            public List<BrowseEntry> call ()
+                            {
+                                return normalizeBatch (leech, batch, predicate);
+                            }
+                        });
+                }
+            };
 
-        for (int i = 0; i < hits.scoreDocs.length; i++) {
-            Document doc = authSearcher.getIndexReader ().document (hits.scoreDocs[i].doc);
+        enumerator.start ();
 
-            String[] preferred = doc.getValues (System.getProperty ("field.preferred", "preferred"));
-            if (preferred.length > 0) {
-                String preferredHeading = preferred[0];
+        try {
+            while (true) {
+                List<BrowseEntry> batch;
 
-                if (bibCount (preferredHeading) > 0) {
-                    return true;
+                try {
+                    batch = batches.take ().get ();
+                } catch (ExecutionException e) {
+                    if (e.getCause () instanceof Error) {
+                        throw (Error) e.getCause ();
+                    }
+
+                    throw (e.getCause () instanceof Exception) ?
+                        (Exception) e.getCause () : e;
+                }
+
+                if (batch == null) {
+                    break;
+                }
+
+                long start = System.nanoTime ();
+
+                for (BrowseEntry h : batch) {
+                    out.write (h.key, h.value.getBytes (UTF8));
                 }
-            } else {
-                return false;
+
+                WRITE_TIME.addSince (start);
+                WRITTEN.add (batch.size ());
             }
+        } finally {
+            enumerator.interrupt ();
         }
+    }
 
-        return false;
+
+    // From the browse.normalizer.threads system property (default: one per
+    // CPU).
+    private static int normalizerThreads ()
+    {
+        return Math.max (1, Integer.getInteger ("browse.normalizer.threads",
+                                                Runtime.getRuntime ().availableProcessors ()));
     }
 
 
@@ -134,7 +227,7 @@ public class PrintBrowseHeadings
     }
 
 
-    private Leech getBibLeech (String bibPath, String luceneField)
+    private Leech getBibLeech (CompositeReader bibReader, String luceneField)
         throws Exception
     {
         String leechClass = "Leech";
@@ -143,9 +236,60 @@ public class PrintBrowseHeadings
             leechClass = getEnvironment ("BIBLEECH");
         }
 
-        return (Leech) (Class.forName (leechClass)
-                        .getConstructor (String.class, String.class)
-                        .newInstance (bibPath, luceneField ));
+        Class<?> c = Class.forName (leechClass);
+
+        try {
+            return (Leech) (c.getConstructor (CompositeReader.class, String.class)
+                            .newInstance (bibReader, luceneField));
+        } catch (NoSuchMethodException e) {
+            // A leech that opens the index itself
+            Directory dir = ((DirectoryReader) bibReader).directory ();
+
+            return (Leech) (c.getConstructor (String.class, String.class)
+                            .newInstance (((FSDirectory) dir).getDirectory ().getPath (),
+                                          luceneField));
+        }
+    }
+
+
+    // One field's headings: the linked non-preferred authority headings
+    // (if there's an authority index), then the bib headings.
+    private void createField (CompositeReader bibReader,
+                              String luceneField,
+                              CompositeReader authReader,
+                              AuthorityLinkage linkage,
+                              String outFile,
+                              ExecutorService normalizers)
+        throws Exception
+    {
+        Leech bibLeech = getBibLeech (bibReader, luceneField);
+
+        HeadingFileWriter out = new HeadingFileWriter (outFile);
+
+        try {
+            if (authReader != null) {
+                Leech nonprefAuthLeech = new Leech (authReader, insteadOfField ());
+
+                try {
+                    loadHeadings (nonprefAuthLeech, out,
+                                  linkage.linkedFrom (bibReader, luceneField),
+                                  normalizers);
+                } finally {
+                    nonprefAuthLeech.dropOff ();
+                }
+            }
+
+            loadHeadings (bibLeech, out, null, normalizers);
+        } finally {
+            bibLeech.dropOff ();
+            out.close ();
+        }
+    }
+
+
+    private String insteadOfField ()
+    {
+        return System.getProperty ("field.insteadof", "insteadOf");
     }
 
 
@@ -155,44 +299,88 @@ public class PrintBrowseHeadings
                         String outFile)
         throws Exception
     {
-        bibLeech = getBibLeech (bibPath, luceneField);
-        this.luceneField = luceneField;
+        create (bibPath, Arrays.asList (luceneField), authPath, Arrays.asList (outFile));
+    }
 
-        IndexReader bibReader = DirectoryReader.open (FSDirectory.open (new File (bibPath)));
-        bibSearcher = new IndexSearcher (bibReader);
 
-        PrintWriter out = new PrintWriter (new FileWriter (outFile));
+    /**
+     * Write the headings of several bib fields, each to its own file.
+     *
+     * The bib and authority indexes are opened once, and the authority
+     * linkage worked out once, for all of them.  The fields are read at
+     * the same time, sharing one pool of normalization workers.
+     */
+    public void create (String bibPath,
+                        List<String> luceneFields,
+                        String authPath,
+                        List<String> outFiles)
+        throws Exception
+    {
+        if (luceneFields.size () != outFiles.size ()) {
+            throw new IllegalArgumentException ("Need one output file per field");
+        }
 
-        if (authPath != null) {
-            nonprefAuthLeech = new Leech (authPath,
-                                          System.getProperty ("field.insteadof",
-                                                              "insteadOf"));
+        final DirectoryReader bibReader = DirectoryReader.open (FSDirectory.open (new File (bibPath)));
+        DirectoryReader authReader = null;
 
-            IndexReader authReader = DirectoryReader.open (FSDirectory.open (new File (authPath)));
-            authSearcher = new IndexSearcher (authReader);
+        ExecutorService normalizers = Executors.newFixedThreadPool (normalizerThreads ());
+        ExecutorService fieldWorkers = Executors.newFixedThreadPool (luceneFields.size ());
 
-            loadHeadings (nonprefAuthLeech, out,
-                          new Predicate () {
-                              public boolean isSatisfiedBy (Object obj)
-                              {
-                                  String heading = (String) obj;
+        try {
+            AuthorityLinkage linkage = null;
 
-                                  try {
-                                      return isLinkedFromBibData (heading);
-                                  } catch (IOException e) {
-                                      return true;
-                                  }
-                              }}
-                );
+            if (authPath != null) {
+                authReader = DirectoryReader.open (FSDirectory.open (new File (authPath)));
 
-            nonprefAuthLeech.dropOff ();
-        }
+                linkage = new AuthorityLinkage
+                    (authReader,
+                     System.getProperty ("field.preferred", "preferred"),
+                     insteadOfField ());
+            }
+
+            final DirectoryReader fieldAuthReader = authReader;
+            final AuthorityLinkage fieldLinkage = linkage;
+            final ExecutorService fieldNormalizers = normalizers;
+
+            List<Future<Void>> fields = new ArrayList<Future<Void>> ();
+
+            for (int i = 0; i < luceneFields.size (); i++) {
+                final String luceneField = luceneFields.get (i);
+                final String outFile = outFiles.get (i);
+
+                fields.add (fieldWorkers.submit (new Callable<Void> () {
+                        public Void call () throws Exception
+                        {
+                            createField (bibReader, luceneField,
+                                         fieldAuthReader, fieldLinkage,
+                                         outFile, fieldNormalizers);
+                            return null;
+                        }
+                    }));
+            }
 
-        loadHeadings (bibLeech, out, null);
+            for (Future<Void> field : fields) {
+                try {
+                    field.get ();
+                } catch (ExecutionException e) {
+                    if (e.getCause () instanceof Error) {
+                        throw (Error) e.getCause ();
+                    }
 
-        bibLeech.dropOff ();
+                    throw (e.getCause () instanceof Exception) ?
+                        (Exception) e.getCause () : e;
+                }
+            }
+        } finally {
+            fieldWorkers.shutdownNow ();
+            normalizers.shutdownNow ();
+
+            if (authReader != null) {
+                authReader.close ();
+            }
 
-        out.close ();
+            bibReader.close ();
+        }
     }
 
 
@@ -207,16 +395,27 @@ public class PrintBrowseHeadings
             System.err.println
                 ("Usage: PrintBrowseHeadings <bib index> <bib field>"
                  + " <out file>");
+            System.err.println
+                ("\nSeveral fields can be given, comma-separated, with an"
+                 + " out file for each (e.g. author-browse,subject-browse"
+                 + " names.tmp,subjects.tmp).");
 
             System.exit (0);
         }
 
         PrintBrowseHeadings self = new PrintBrowseHeadings ();
 
+        Progress.start ("PrintBrowseHeadings");
+
+        List<String> fields = Arrays.asList (args[1].split (","));
+        List<String> outFiles = Arrays.asList (args[args.length - 1].split (","));
+
         if (args.length == 4) {
-            self.create (args[0], args[1], args[2], args[3]);
+            self.create (args[0], fields, args[2], outFiles);
         } else {
-            self.create (args[0], args[1], null, args[2]);
+            self.create (args[0], fields, null, outFiles);
         }
+
+        Progress.finish ();
     }
 }
@@ -0,0 +1,16 @@
+//
+// A heading pulled from an index before its sort key has been built.  The
+// sort key is built from sortText, which needn't be the heading itself.
+//
+
+public class RawHeading
+{
+    public String sortText;
+    public String value;
+
+    public RawHeading (String sortText, String value)
+    {
+        this.sortText = sortText;
+        this.value = value;
+    }
+}
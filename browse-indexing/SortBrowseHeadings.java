@@ -0,0 +1,68 @@
+//
+// Sort and de-duplicate one or more headings files produced by
+// PrintBrowseHeadings, ready for loading by CreateBrowseSQLite.
+//
+// Takes the place of running GNU sort over the headings files.  See
+// HeadingSorter for the system properties controlling memory use, threads
+// and temporary files.
+//
+
+import java.io.*;
+import java.util.*;
+
+
+public class SortBrowseHeadings
+{
+    public void sort (List<String> headingsFiles, String outFile)
+        throws Exception
+    {
+        HeadingSorter sorter = new HeadingSorter ();
+        HeadingStream sorted;
+
+        try {
+            for (String headingsFile : headingsFiles) {
+                HeadingStream in = new HeadingFileReader (headingsFile);
+                try {
+                    sorter.addAll (in);
+                } finally {
+                    in.close ();
+                }
+            }
+
+            sorted = sorter.sorted ();
+        } finally {
+            sorter.close ();
+        }
+
+        try {
+            HeadingFileWriter out = new HeadingFileWriter (outFile);
+
+            try {
+                while (sorted.next ()) {
+                    out.write (sorted.key (), sorted.heading ());
+                }
+            } finally {
+                out.close ();
+            }
+        } finally {
+            sorted.close ();
+        }
+    }
+
+
+    public static void main (String args[])
+        throws Exception
+    {
+        if (args.length < 2) {
+            System.err.println
+                ("Usage: SortBrowseHeadings <headings file> [<headings file> ...] "
+                 + "<sorted file>");
+            System.exit (0);
+        }
+
+        SortBrowseHeadings self = new SortBrowseHeadings ();
+
+        self.sort (Arrays.asList (args).subList (0, args.length - 1),
+                   args[args.length - 1]);
+    }
+}
@@ -1,30 +1,94 @@
 // Build a browse list by walking the docs in an index and extracting sort key
 // and values from a pair of stored fields.
+//
+// The docs are split into chunks (never crossing a segment) which are read by
+// a pool of worker threads.  Each chunk's entries come back through a bounded
+// queue, and chunks are consumed in order, so entries come out in docid
+// order just as if we'd read the index from start to finish.  Deleted docs
+// are skipped.
+//
+// Where a segment has single-valued DocValues for both SORTFIELD and
+// VALUEFIELD, those are read instead of the stored fields.  That needs
+// AtomicReader.getDocsWithField (Lucene 4.5 on) to tell a missing value from
+// an empty one, and BinaryDocValues.get changed shape in 4.9, so the
+// DocValues calls are looked up at run time to keep building against any
+// Lucene 4.x from 4.2.  Older versions just read the stored fields.
+//
+// The number of worker threads comes from the browse.leech.threads system
+// property (default: one per CPU).
 
 import java.io.*;
+import java.lang.reflect.Method;
 import java.util.*;
-import org.apache.lucene.store.*;
+import java.util.concurrent.*;
 import org.apache.lucene.index.*;
 import org.apache.lucene.document.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 
+import org.vufind.util.Progress;
 import org.vufind.util.Utils;
-import org.vufind.util.BrowseEntry;
 
 public class StoredFieldLeech extends Leech
 {
-    int currentDoc = 0;
-    LinkedList<BrowseEntry> buffer;
+    // Docs per chunk of work
+    private static final int CHUNK_SIZE = 65536;
+
+    // Entries passed back from a worker at a time
+    private static final int BATCH_SIZE = 1024;
+
+    // Batches a worker can get ahead of the consumer by
+    private static final int QUEUE_SIZE = 8;
+
+    static final Progress.Counter DOCS_SCANNED = Progress.counter ("leech.docs_scanned");
+    static final Progress.Counter DOCS_DELETED = Progress.counter ("leech.docs_deleted");
+
+    // BinaryDocValues.get (int) from Lucene 4.9, get (int, BytesRef) before
+    private static final Method GET_VALUE = method (BinaryDocValues.class, "get", int.class);
+    private static final Method GET_VALUE_INTO =
+        method (BinaryDocValues.class, "get", int.class, BytesRef.class);
+
+    // AtomicReader.getDocsWithField (String), from Lucene 4.5
+    private static final Method DOCS_WITH_FIELD =
+        method (AtomicReader.class, "getDocsWithField", String.class);
 
     String sortField;
     String valueField;
 
     private Set<String> fieldSelection;
 
+    private ExecutorService workers;
+    private List<Chunk> chunks;
+    private int currentChunk = 0;
+    private Iterator<RawHeading> currentBatch;
+
 
     public StoredFieldLeech (String indexPath, String field) throws Exception
     {
         super (indexPath, field);
+        init ();
+    }
+
+
+    public StoredFieldLeech (CompositeReader reader, String field) throws Exception
+    {
+        super (reader, field);
+        init ();
+    }
 
+
+    private static Method method (Class<?> c, String name, Class<?>... types)
+    {
+        try {
+            return c.getMethod (name, types);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+
+    private void init ()
+    {
         sortField = Utils.getEnvironment ("SORTFIELD");
         valueField = Utils.getEnvironment ("VALUEFIELD");
 
@@ -38,55 +102,232 @@ public class StoredFieldLeech extends Leech
         fieldSelection.add(sortField);
         fieldSelection.add(valueField);
         fieldSelection.add("id");   // make Solr id available for error messages
-
-        reader = DirectoryReader.open (FSDirectory.open (new File (indexPath)));
-        buffer = new LinkedList<BrowseEntry> ();
     }
 
 
-    private void loadDocument (IndexReader reader, int docid)
-        throws Exception
+    // A range of docs within one segment, and the queue its entries come
+    // back through.  An empty batch marks the end of the chunk.
+    private class Chunk implements Callable<Void>
     {
-        Document doc = reader.document (currentDoc, fieldSelection);
+        AtomicReader reader;
+        int docBase;
+        int from;
+        int to;
+
+        BlockingQueue<List<RawHeading>> queue =
+            new ArrayBlockingQueue<List<RawHeading>> (QUEUE_SIZE);
+        Future<Void> task;
+
+        private List<RawHeading> batch = new ArrayList<RawHeading> (BATCH_SIZE);
+
+        Chunk (AtomicReaderContext leaf, int from, int to)
+        {
+            this.reader = leaf.reader ();
+            this.docBase = leaf.docBase;
+            this.from = from;
+            this.to = to;
+        }
+
+
+        private void add (String sortKey, String value) throws InterruptedException
+        {
+            batch.add (new RawHeading (sortKey, value));
+
+            if (batch.size () == BATCH_SIZE) {
+                queue.put (batch);
+                batch = new ArrayList<RawHeading> (BATCH_SIZE);
+            }
+        }
+
+
+        private void loadDocument (int docid)
+            throws Exception
+        {
+            Document doc = reader.document (docid, fieldSelection);
+
+            String[] sort_key = doc.getValues (sortField);
+            String[] value = doc.getValues (valueField);
+
+            if (sort_key.length == value.length) {
+                for (int i = 0; i < value.length; i++) {
+                    add (sort_key[i], value[i]);
+                }
+            } else {
+                String id = null;
+                IndexableField idField = doc.getField("id");
+                if (idField != null) {
+                    /*
+                     * Assumes id is defined as type string in Solr schema.
+                     * Should be safe for VuFind.
+                     */
+                    id = idField.stringValue();
+                }
+                System.err.println("Skipped entries for doc #" + (docBase + docid) +
+                                   " (id:" + id + "):" +
+                                   " the number of sort keys didn't" +
+                                   " match the number of stored values.");
+            }
+        }
+
+
+        // Single-valued DocValues, if the segment has them.
+        private BinaryDocValues docValues (String field) throws IOException
+        {
+            BinaryDocValues result = reader.getSortedDocValues (field);
+
+            if (result == null) {
+                result = reader.getBinaryDocValues (field);
+            }
+
+            return result;
+        }
+
+
+        // The docs with a value for field, or null if we can't tell
+        private Bits docsWithField (String field) throws Exception
+        {
+            return (DOCS_WITH_FIELD == null) ?
+                null : (Bits) DOCS_WITH_FIELD.invoke (reader, field);
+        }
 
-        String[] sort_key = doc.getValues (sortField);
-        String[] value = doc.getValues (valueField);
 
-        if (sort_key.length == value.length) {
-            for (int i = 0; i < value.length; i++) {
-                buffer.add (new BrowseEntry(buildSortKey(sort_key[i]),
-                                            value[i]));
+        private String value (BinaryDocValues values, int docid, BytesRef scratch)
+            throws Exception
+        {
+            BytesRef result;
+
+            if (GET_VALUE != null) {
+                result = (BytesRef) GET_VALUE.invoke (values, docid);
+            } else {
+                GET_VALUE_INTO.invoke (values, docid, scratch);
+                result = scratch;
             }
-        } else {
-            String id = null;
-            IndexableField idField = doc.getField("id");
-            if (idField != null) {
-                /*
-                 * Assumes id is defined as type string in Solr schema.
-                 * Should be safe for VuFind.
-                 */
-                id = idField.stringValue();
+
+            return result.utf8ToString ();
+        }
+
+
+        public Void call () throws Exception
+        {
+            try {
+                Bits liveDocs = reader.getLiveDocs ();
+
+                BinaryDocValues sortValues = docValues (sortField);
+                BinaryDocValues values = docValues (valueField);
+
+                Bits hasSort = null;
+                Bits hasValue = null;
+
+                if (sortValues != null && values != null) {
+                    hasSort = docsWithField (sortField);
+                    hasValue = docsWithField (valueField);
+                }
+
+                boolean useDocValues = (hasSort != null && hasValue != null &&
+                                        (GET_VALUE != null || GET_VALUE_INTO != null));
+
+                BytesRef sortBytes = new BytesRef ();
+                BytesRef valueBytes = new BytesRef ();
+
+                int deleted = 0;
+
+                for (int docid = from; docid < to; docid++) {
+                    if (liveDocs != null && !liveDocs.get (docid)) {
+                        deleted++;
+                        continue;
+                    }
+
+                    if (useDocValues) {
+                        // As with stored fields, a doc missing either gives
+                        // no entry, but empty values are kept.
+                        if (hasSort.get (docid) && hasValue.get (docid)) {
+                            add (value (sortValues, docid, sortBytes),
+                                 value (values, docid, valueBytes));
+                        }
+                    } else {
+                        loadDocument (docid);
+                    }
+                }
+
+                if (!batch.isEmpty ()) {
+                    queue.put (batch);
+                }
+
+                DOCS_SCANNED.add (to - from);
+                DOCS_DELETED.add (deleted);
+            } finally {
+                queue.put (Collections.<RawHeading>emptyList ());
             }
-            System.err.println("Skipped entries for doc #" + docid +
-                               " (id:" + id + "):" +
-                               " the number of sort keys didn't" +
-                               " match the number of stored values.");
+
+            return null;
         }
     }
 
 
-    public BrowseEntry next() throws Exception
+    private void startWorkers ()
     {
-        while (buffer.isEmpty ()) {
-            if (currentDoc < reader.maxDoc ()) {
-                loadDocument (reader, currentDoc);
-                currentDoc++;
-            } else {
+        workers = Executors.newFixedThreadPool
+            (Math.max (1, Integer.getInteger ("browse.leech.threads",
+                                              Runtime.getRuntime ().availableProcessors ())));
+
+        chunks = new ArrayList<Chunk> ();
+
+        for (AtomicReaderContext leaf : reader.leaves ()) {
+            int maxDoc = leaf.reader ().maxDoc ();
+
+            for (int from = 0; from < maxDoc; from += CHUNK_SIZE) {
+                chunks.add (new Chunk (leaf, from, Math.min (maxDoc, from + CHUNK_SIZE)));
+            }
+        }
+
+        // The pool runs these in the order they're submitted, so the chunk
+        // we're waiting on is always running or finished.
+        for (Chunk chunk : chunks) {
+            chunk.task = workers.submit (chunk);
+        }
+    }
+
+
+    public RawHeading nextHeading () throws Exception
+    {
+        if (workers == null) {
+            startWorkers ();
+        }
+
+        while (currentBatch == null || !currentBatch.hasNext ()) {
+            if (currentChunk >= chunks.size ()) {
                 return null;
             }
+
+            Chunk chunk = chunks.get (currentChunk);
+            List<RawHeading> batch = chunk.queue.take ();
+
+            if (batch.isEmpty ()) {
+                // End of the chunk.  Check it didn't end badly.
+                try {
+                    chunk.task.get ();
+                } catch (ExecutionException e) {
+                    throw new IOException ("Failed to read stored fields", e.getCause ());
+                }
+
+                currentChunk++;
+            }
+
+            currentBatch = batch.iterator ();
         }
 
-        return buffer.remove ();
+        HEADINGS.increment ();
+
+        return currentBatch.next ();
     }
-}
 
+
+    public void dropOff () throws IOException
+    {
+        if (workers != null) {
+            workers.shutdownNow ();
+        }
+
+        super.dropOff ();
+    }
+}
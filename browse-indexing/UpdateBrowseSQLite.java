@@ -0,0 +1,526 @@
+//
+// Bring a browse database up to date with a changed bib index without
+// rebuilding it from scratch.
+//
+// Alongside the database we keep a state file (<db file>-state) recording
+// the bib and authority index versions it was built from, the bib field's
+// live terms and the non-preferred authority headings that were linked.  On
+// each run we compare the current terms against that list to find the
+// headings that have come and gone, build sort keys for just those, and
+// merge them into a copy of the existing database.  If neither index has
+// changed since the last run, there's nothing to do and we stop early.
+//
+// The new database is written to <db file>-updated and <db file>-ready is
+// created once it's complete, which is the signal for the browse handler to
+// swap it in.  If an earlier update hasn't been picked up yet, we build on
+// that instead.
+//
+// With no state file, every heading is new, so the first run is a full
+// build.
+//
+// If the database has filter bitmaps (see CreateFilterBitmaps), they're
+// rebuilt for the new database whenever the bib index has changed.
+//
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.sql.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+
+import org.vufind.util.Progress;
+import org.vufind.util.SortKeys;
+
+
+public class UpdateBrowseSQLite
+{
+    private static final int STATE_VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName ("UTF-8");
+
+    private Leech bibLeech;
+    private Leech nonprefAuthLeech;
+
+    private String luceneField;
+    private long bibVersion;
+    private long authVersion = -1;
+
+    // What the database currently holds, according to the state file
+    private Set<String> oldAuthHeadings = new HashSet<String> ();
+
+    private List<String> newAuthHeadings = new ArrayList<String> ();
+    private Set<String> newAuthSet = new HashSet<String> ();
+
+    // Headings that changed, and whether they were/are in the bib field
+    private Map<String, Boolean> oldInBib = new HashMap<String, Boolean> ();
+    private Map<String, Boolean> newInBib = new HashMap<String, Boolean> ();
+
+    private HeadingSorter added = new HeadingSorter ();
+    private Set<ByteBuffer> removed = new HashSet<ByteBuffer> ();
+    private int addedCount = 0;
+
+
+    private static byte[] readBytes (DataInputStream in, int length) throws IOException
+    {
+        byte[] result = new byte[length];
+        in.readFully (result);
+        return result;
+    }
+
+
+    private static void writeString (DataOutputStream out, String s) throws IOException
+    {
+        byte[] bytes = s.getBytes (UTF8);
+        out.writeInt (bytes.length);
+        out.write (bytes);
+    }
+
+
+    /*
+     * Read the state file up to the start of its bib terms.  Returns null if
+     * there's no usable state, or if the indexes haven't changed since it
+     * was written (in which case unchanged is set).
+     */
+    private DataInputStream openState (File stateFile, boolean[] unchanged)
+        throws IOException
+    {
+        if (!stateFile.exists ()) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream
+            (new BufferedInputStream (new FileInputStream (stateFile), 65536));
+
+        if (in.readInt () != STATE_VERSION ||
+            !luceneField.equals (in.readUTF ())) {
+            System.err.println ("State file " + stateFile + " doesn't match.  " +
+                                "Rebuilding from scratch.");
+            in.close ();
+            return null;
+        }
+
+        long lastBibVersion = in.readLong ();
+        long lastAuthVersion = in.readLong ();
+
+        if (lastBibVersion == bibVersion && lastAuthVersion == authVersion) {
+            unchanged[0] = true;
+            in.close ();
+            return null;
+        }
+
+        int authCount = in.readInt ();
+        for (int i = 0; i < authCount; i++) {
+            oldAuthHeadings.add (new String (readBytes (in, in.readInt ()), UTF8));
+        }
+
+        return in;
+    }
+
+
+    private void loadAuthHeadings (Predicate linked) throws Exception
+    {
+        RawHeading h;
+        while ((h = nonprefAuthLeech.nextHeading ()) != null) {
+            if (linked.isSatisfiedBy (h.value)) {
+                newAuthHeadings.add (h.value);
+                newAuthSet.add (h.value);
+            }
+        }
+    }
+
+
+    private void noteChange (String heading, boolean wasPresent, boolean isPresent)
+        throws IOException
+    {
+        if (isPresent && !wasPresent) {
+            added.add (bibLeech.buildSortKey (heading), heading.getBytes (UTF8));
+            addedCount++;
+        } else if (wasPresent && !isPresent) {
+            removed.add (ByteBuffer.wrap (heading.getBytes (UTF8)));
+        }
+    }
+
+
+    /*
+     * Walk the bib field's current terms alongside the ones recorded in the
+     * state file (both in term order), writing the current ones to the new
+     * state file and noting any differences.
+     */
+    private void diffBibTerms (DataInputStream oldState,
+                               DataOutputStream newState,
+                               Set<String> authChanges)
+        throws Exception
+    {
+        byte[] oldTerm = null;
+        if (oldState != null) {
+            int len = oldState.readInt ();
+            oldTerm = (len >= 0) ? readBytes (oldState, len) : null;
+        }
+
+        RawHeading h = bibLeech.nextHeading ();
+        byte[] newTerm = (h != null) ? h.value.getBytes (UTF8) : null;
+
+        while (oldTerm != null || newTerm != null) {
+            int cmp;
+            if (oldTerm == null) {
+                cmp = 1;
+            } else if (newTerm == null) {
+                cmp = -1;
+            } else {
+                cmp = SortKeys.compare (oldTerm, newTerm);
+            }
+
+            String heading = (cmp <= 0) ?
+                new String (oldTerm, UTF8) : h.value;
+
+            boolean inOld = (cmp <= 0);
+            boolean inNew = (cmp >= 0);
+
+            if (authChanges.contains (heading)) {
+                // Sorted out once we know everything about it
+                oldInBib.put (heading, inOld);
+                newInBib.put (heading, inNew);
+            } else if (inOld != inNew) {
+                noteChange (heading,
+                            inOld || oldAuthHeadings.contains (heading),
+                            inNew || newAuthSet.contains (heading));
+            }
+
+            if (inNew) {
+                newState.writeInt (newTerm.length);
+                newState.write (newTerm);
+
+                h = bibLeech.nextHeading ();
+                newTerm = (h != null) ? h.value.getBytes (UTF8) : null;
+            }
+
+            if (inOld) {
+                int len = oldState.readInt ();
+                oldTerm = (len >= 0) ? readBytes (oldState, len) : null;
+            }
+        }
+
+        newState.writeInt (-1);
+    }
+
+
+    // The existing database's headings, in rowid (and so key) order.
+    private static class DBHeadings implements HeadingStream
+    {
+        private Connection db;
+        private Statement stmt;
+        private ResultSet rs;
+
+        DBHeadings (String path) throws Exception
+        {
+            db = DriverManager.getConnection ("jdbc:sqlite:" + path);
+            stmt = db.createStatement ();
+            rs = stmt.executeQuery ("select key, heading from headings order by rowid");
+        }
+
+        public boolean next () throws IOException
+        {
+            try {
+                return rs.next ();
+            } catch (SQLException e) {
+                throw new IOException ("Failed to read existing headings", e);
+            }
+        }
+
+        public byte[] key ()
+        {
+            try {
+                return rs.getBytes ("key");
+            } catch (SQLException e) {
+                throw new RuntimeException (e);
+            }
+        }
+
+        public byte[] heading ()
+        {
+            try {
+                return rs.getBytes ("heading");
+            } catch (SQLException e) {
+                throw new RuntimeException (e);
+            }
+        }
+
+        public void close () throws IOException
+        {
+            try {
+                rs.close ();
+                stmt.close ();
+                db.close ();
+            } catch (SQLException e) {
+                throw new IOException ("Failed to close existing headings", e);
+            }
+        }
+    }
+
+
+    // The existing headings minus the removed ones, merged with the added ones.
+    private class UpdatedHeadings implements HeadingStream
+    {
+        private HeadingStream existing;
+        private HeadingStream additions;
+
+        private boolean existingDone = false;
+        private boolean additionsDone = false;
+
+        private byte[] key;
+        private byte[] heading;
+
+        UpdatedHeadings (HeadingStream existing, HeadingStream additions)
+            throws IOException
+        {
+            this.existing = existing;
+            this.additions = additions;
+
+            advanceExisting ();
+            additionsDone = !additions.next ();
+        }
+
+        private void advanceExisting () throws IOException
+        {
+            while (existing != null && existing.next ()) {
+                if (!removed.contains (ByteBuffer.wrap (existing.heading ()))) {
+                    return;
+                }
+            }
+
+            existingDone = true;
+        }
+
+        public boolean next () throws IOException
+        {
+            if (existingDone && additionsDone) {
+                return false;
+            }
+
+            // In the same order as a full rebuild, so rowids come out the same
+            boolean takeExisting = !existingDone &&
+                (additionsDone ||
+                 HeadingSorter.compare (existing.key (), existing.heading (),
+                                        additions.key (), additions.heading ()) <= 0);
+
+            if (takeExisting) {
+                key = existing.key ();
+                heading = existing.heading ();
+                advanceExisting ();
+            } else {
+                key = additions.key ();
+                heading = additions.heading ();
+                additionsDone = !additions.next ();
+            }
+
+            return true;
+        }
+
+        public byte[] key () { return key; }
+        public byte[] heading () { return heading; }
+
+        public void close () throws IOException
+        {
+            if (existing != null) {
+                existing.close ();
+            }
+
+            additions.close ();
+        }
+    }
+
+
+    /*
+     * Clean up after update, whether or not it finished.
+     */
+    public void close ()
+    {
+        added.close ();
+    }
+
+
+    private static void replace (File from, File to) throws IOException
+    {
+        to.delete ();
+
+        if (!from.renameTo (to)) {
+            throw new IOException ("Failed to rename " + from + " to " + to);
+        }
+    }
+
+
+    public void update (String bibPath,
+                        String luceneField,
+                        String authPath,
+                        String dbPath)
+        throws Exception
+    {
+        this.luceneField = luceneField;
+
+        bibLeech = new ParallelLeech (bibPath, luceneField);
+        bibVersion = ((DirectoryReader) bibLeech.reader).getVersion ();
+
+        if (authPath != null) {
+            String insteadOfField = System.getProperty ("field.insteadof", "insteadOf");
+
+            nonprefAuthLeech = new Leech (authPath, insteadOfField);
+            authVersion = ((DirectoryReader) nonprefAuthLeech.reader).getVersion ();
+        }
+
+        File stateFile = new File (dbPath + "-state");
+        File newStateFile = new File (dbPath + "-state.new");
+        File updated = new File (dbPath + "-updated");
+        File ready = new File (dbPath + "-ready");
+
+        // Build on an update the browse handler hasn't installed yet, if any.
+        File base = (updated.exists () && ready.exists ()) ? updated : new File (dbPath);
+
+        boolean[] unchanged = { false };
+        DataInputStream oldState = base.exists () ? openState (stateFile, unchanged) : null;
+
+        if (unchanged[0]) {
+            System.err.println ("No changes to " + dbPath + " since the last update.  Skipping.");
+            dropOff ();
+            return;
+        }
+
+        if (authPath != null) {
+            AuthorityLinkage linkage = new AuthorityLinkage
+                (nonprefAuthLeech.reader,
+                 System.getProperty ("field.preferred", "preferred"),
+                 System.getProperty ("field.insteadof", "insteadOf"));
+
+            loadAuthHeadings (linkage.linkedFrom (bibLeech.reader, luceneField));
+        }
+
+        Set<String> authChanges = new HashSet<String> ();
+        for (String heading : newAuthHeadings) {
+            if (!oldAuthHeadings.contains (heading)) {
+                authChanges.add (heading);
+            }
+        }
+        for (String heading : oldAuthHeadings) {
+            if (!newAuthSet.contains (heading)) {
+                authChanges.add (heading);
+            }
+        }
+
+        DataOutputStream newState = new DataOutputStream
+            (new BufferedOutputStream (new FileOutputStream (newStateFile), 65536));
+
+        try {
+            newState.writeInt (STATE_VERSION);
+            newState.writeUTF (luceneField);
+            newState.writeLong (bibVersion);
+            newState.writeLong (authVersion);
+
+            newState.writeInt (newAuthHeadings.size ());
+            for (String heading : newAuthHeadings) {
+                writeString (newState, heading);
+            }
+
+            diffBibTerms (oldState, newState, authChanges);
+        } finally {
+            newState.close ();
+
+            if (oldState != null) {
+                oldState.close ();
+            }
+        }
+
+        for (String heading : authChanges) {
+            noteChange (heading,
+                        Boolean.TRUE.equals (oldInBib.get (heading)) || oldAuthHeadings.contains (heading),
+                        Boolean.TRUE.equals (newInBib.get (heading)) || newAuthSet.contains (heading));
+        }
+
+        dropOff ();
+
+        System.err.println (dbPath + ": " + addedCount + " headings added, " +
+                            removed.size () + " removed.");
+
+        // Rowids change whenever headings do, and the records matching a
+        // filter can change even when they don't.
+        List<String> filters = (oldState != null) ?
+            CreateFilterBitmaps.existingFilters (base.getPath ()) :
+            new ArrayList<String> ();
+
+        if (oldState != null && addedCount == 0 && removed.isEmpty () && filters.isEmpty ()) {
+            // The indexes changed, but not in a way that affects this browse.
+            // Just note the new versions.
+            added.sorted ().close ();
+            replace (newStateFile, stateFile);
+            return;
+        }
+
+        Class.forName ("org.sqlite.JDBC");
+
+        HeadingStream headings = new UpdatedHeadings
+            ((oldState != null) ? new DBHeadings (base.getPath ()) : null,
+             added.sorted ());
+
+        File tmp = new File (dbPath + "-updated.tmp");
+        tmp.delete ();
+
+        try {
+            new CreateBrowseSQLite ().createSorted (headings, tmp.getPath ());
+        } finally {
+            headings.close ();
+        }
+
+        if (!filters.isEmpty ()) {
+            new CreateFilterBitmaps ().create (bibPath, luceneField, tmp.getPath (), filters);
+        }
+
+        // Make sure the browse handler doesn't grab a half-written database
+        ready.delete ();
+        replace (tmp, updated);
+        replace (newStateFile, stateFile);
+        ready.createNewFile ();
+    }
+
+
+    private void dropOff () throws IOException
+    {
+        bibLeech.dropOff ();
+
+        if (nonprefAuthLeech != null) {
+            nonprefAuthLeech.dropOff ();
+        }
+    }
+
+
+    public static void main (String args[])
+        throws Exception
+    {
+        if (args.length != 3 && args.length != 4) {
+            System.err.println
+                ("Usage: UpdateBrowseSQLite <bib index> <bib field> "
+                 + "<auth index> <db file>");
+            System.err.println ("\nor:\n");
+            System.err.println
+                ("Usage: UpdateBrowseSQLite <bib index> <bib field>"
+                 + " <db file>");
+
+            System.exit (0);
+        }
+
+        UpdateBrowseSQLite self = new UpdateBrowseSQLite ();
+
+        Progress.start ("UpdateBrowseSQLite");
+
+        try {
+            if (args.length == 4) {
+                self.update (args[0], args[1], args[2], args[3]);
+            } else {
+                self.update (args[0], args[1], null, args[2]);
+            }
+        } finally {
+            self.close ();
+        }
+
+        Progress.finish ();
+    }
+}
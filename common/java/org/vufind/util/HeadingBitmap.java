@@ -0,0 +1,241 @@
+package org.vufind.util;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A set of heading rowids, used to record which headings of a browse
+ * database have records matching some filter.
+ *
+ * Stored as alternating run lengths of absent and present rowids, starting
+ * from rowid 1 with a (possibly empty) run of absent ones, each written as a
+ * varint.  Trailing absent rowids aren't written.  Browse databases are
+ * mostly long runs one way or the other, so this stays small.
+ *
+ * Once decoded, <code>rank</code> and <code>select</code> map between
+ * rowids and positions in the list of present rowids, which is what paging
+ * over just the present headings needs.
+ */
+
+public class HeadingBitmap
+{
+    private long[] words;
+
+    // Number of present rowids in words[0..i-1]
+    private int[] rankIndex;
+
+    private int count;
+
+
+    private HeadingBitmap (long[] words)
+    {
+        this.words = words;
+
+        rankIndex = new int[words.length];
+        count = 0;
+
+        for (int i = 0; i < words.length; i++) {
+            rankIndex[i] = count;
+            count += Long.bitCount (words[i]);
+        }
+    }
+
+
+    private static int readVarint (byte[] bytes, int[] pos)
+    {
+        int result = 0;
+
+        for (int shift = 0; ; shift += 7) {
+            if (pos[0] >= bytes.length || shift >= 32) {
+                throw new IllegalArgumentException ("Corrupt heading bitmap");
+            }
+
+            int b = bytes[pos[0]++];
+            result |= (b & 0x7f) << shift;
+
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+    }
+
+
+    public static HeadingBitmap decode (byte[] runs)
+    {
+        // First pass to find the last rowid
+        int[] pos = { 0 };
+        long end = 1;
+        while (pos[0] < runs.length) {
+            end += readVarint (runs, pos);
+        }
+
+        if (end > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException ("Corrupt heading bitmap");
+        }
+
+        long[] words = new long[(int) (end >>> 6) + 1];
+
+        pos[0] = 0;
+        int rowid = 1;
+        boolean present = false;
+
+        while (pos[0] < runs.length) {
+            int length = readVarint (runs, pos);
+
+            if (present) {
+                for (int i = rowid; i < rowid + length; i++) {
+                    words[i >>> 6] |= (1L << (i & 63));
+                }
+            }
+
+            rowid += length;
+            present = !present;
+        }
+
+        return new HeadingBitmap (words);
+    }
+
+
+    /**
+     * The number of rowids present.
+     */
+    public int count ()
+    {
+        return count;
+    }
+
+
+    public boolean get (int rowid)
+    {
+        int w = rowid >>> 6;
+        return (rowid >= 0 && w < words.length && (words[w] & (1L << (rowid & 63))) != 0);
+    }
+
+
+    /**
+     * The number of present rowids less than <code>rowid</code>.  For a
+     * present rowid, that's its position among them.
+     */
+    public int rank (int rowid)
+    {
+        if (rowid <= 0) {
+            return 0;
+        }
+
+        int w = rowid >>> 6;
+        if (w >= words.length) {
+            return count;
+        }
+
+        return rankIndex[w] + Long.bitCount (words[w] & ((1L << (rowid & 63)) - 1));
+    }
+
+
+    /**
+     * The present rowid at (zero-based) position <code>n</code>, or -1 if
+     * there aren't that many.
+     */
+    public int select (int n)
+    {
+        if (n < 0 || n >= count) {
+            return -1;
+        }
+
+        // The last word with at most n present rowids before it
+        int low = 0;
+        int high = words.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+
+            if (rankIndex[mid] <= n) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        long word = words[low];
+        for (int skip = n - rankIndex[low]; skip > 0; skip--) {
+            word &= word - 1;
+        }
+
+        return (low << 6) + Long.numberOfTrailingZeros (word);
+    }
+
+
+    /**
+     * The rowids present in both this and <code>other</code>.
+     */
+    public HeadingBitmap and (HeadingBitmap other)
+    {
+        long[] result = new long[Math.min (words.length, other.words.length)];
+
+        for (int i = 0; i < result.length; i++) {
+            result[i] = words[i] & other.words[i];
+        }
+
+        return new HeadingBitmap (result);
+    }
+
+
+    /**
+     * Encodes a set of rowids, added in increasing order.
+     */
+    public static class Builder
+    {
+        private ByteArrayOutputStream out = new ByteArrayOutputStream ();
+
+        // The first rowid not yet accounted for, and the start of the
+        // current run of present rowids (or 0 if we're not in one).
+        private int next = 1;
+        private int runStart = 0;
+        private int count = 0;
+
+
+        private void writeVarint (int value)
+        {
+            while ((value & ~0x7f) != 0) {
+                out.write ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+
+            out.write (value);
+        }
+
+
+        public void add (int rowid)
+        {
+            if (rowid < next) {
+                throw new IllegalArgumentException ("Rowids must be added in increasing order");
+            }
+
+            if (runStart == 0) {
+                writeVarint (rowid - next);
+                runStart = rowid;
+            } else if (rowid != next) {
+                writeVarint (next - runStart);
+                writeVarint (rowid - next);
+                runStart = rowid;
+            }
+
+            next = rowid + 1;
+            count++;
+        }
+
+
+        public int count ()
+        {
+            return count;
+        }
+
+
+        public byte[] toByteArray ()
+        {
+            if (runStart != 0) {
+                writeVarint (next - runStart);
+                runStart = 0;
+            }
+
+            return out.toByteArray ();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package org.vufind.util;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress and throughput reporting for the indexing tools.
+ *
+ * Counters are named <code>stage.what</code> (e.g.
+ * <code>leech.terms_scanned</code>) and shared by the whole JVM, so any
+ * class can count things without being handed anything.  Timers are
+ * counters of nanoseconds, reported in seconds.  Counting is cheap enough
+ * to leave on whether or not anything is reported.
+ *
+ * Once <code>start</code> has been called, a line of key=value pairs goes
+ * to stderr every browse.progress.interval seconds (default 60, 0 for
+ * none), with each counter's total and its rate since the last line.
+ * <code>finish</code> writes a one-line JSON summary, to the file named by
+ * browse.progress.summary if that's set and to stderr otherwise.
+ */
+
+public class Progress
+{
+    public static class Counter
+    {
+        private final String name;
+        private final boolean nanos;
+        private final AtomicLong value = new AtomicLong ();
+
+        // As of the last report
+        private long reported;
+
+
+        private Counter (String name, boolean nanos)
+        {
+            this.name = name;
+            this.nanos = nanos;
+        }
+
+
+        public void increment ()
+        {
+            value.incrementAndGet ();
+        }
+
+
+        public void add (long n)
+        {
+            value.addAndGet (n);
+        }
+
+
+        public long get ()
+        {
+            return value.get ();
+        }
+
+
+        /**
+         * For timers: add the time since <code>startNanos</code> (from
+         * <code>System.nanoTime</code>).
+         */
+        public void addSince (long startNanos)
+        {
+            value.addAndGet (System.nanoTime () - startNanos);
+        }
+    }
+
+
+    private static final Map<String, Counter> counters = new TreeMap<String, Counter> ();
+
+    private static String tool;
+    private static long startNanos = System.nanoTime ();
+    private static long lastReportNanos = startNanos;
+    private static Thread reporter;
+
+
+    private static synchronized Counter get (String name, boolean nanos)
+    {
+        Counter counter = counters.get (name);
+
+        if (counter == null) {
+            counter = new Counter (name, nanos);
+            counters.put (name, counter);
+        }
+
+        return counter;
+    }
+
+
+    public static Counter counter (String name)
+    {
+        return get (name, false);
+    }
+
+
+    public static Counter timer (String name)
+    {
+        return get (name, true);
+    }
+
+
+    private static String format (double value)
+    {
+        return String.format (Locale.ROOT, "%.1f", value);
+    }
+
+
+    /**
+     * Start (or restart) the clock for <code>toolName</code>, with every
+     * counter back at zero, and start reporting.
+     */
+    public static synchronized void start (String toolName)
+    {
+        stopReporter ();
+
+        tool = toolName;
+        startNanos = System.nanoTime ();
+        lastReportNanos = startNanos;
+
+        for (Counter counter : counters.values ()) {
+            counter.value.set (0);
+            counter.reported = 0;
+        }
+
+        final long interval = Long.getLong ("browse.progress.interval", 60) * 1000;
+
+        if (interval <= 0) {
+            return;
+        }
+
+        reporter = new Thread ("progress reporter") {
+                public void run ()
+                {
+                    try {
+                        while (true) {
+                            Thread.sleep (interval);
+                            System.err.println (report ());
+                        }
+                    } catch (InterruptedException e) {
+                        // Finished
+                    }
+                }
+            };
+
+        reporter.setDaemon (true);
+        reporter.start ();
+    }
+
+
+    private static void stopReporter ()
+    {
+        if (reporter != null) {
+            reporter.interrupt ();
+            reporter = null;
+        }
+    }
+
+
+    /**
+     * The counters as a line of key=value pairs, with rates since the last
+     * line.
+     */
+    public static synchronized String report ()
+    {
+        long now = System.nanoTime ();
+        double elapsed = (now - startNanos) / 1e9;
+        double sinceLast = Math.max (1e-9, (now - lastReportNanos) / 1e9);
+
+        StringBuilder result = new StringBuilder ("progress");
+
+        if (tool != null) {
+            result.append (" tool=").append (tool);
+        }
+
+        result.append (" elapsed_seconds=").append (format (elapsed));
+
+        for (Counter counter : counters.values ()) {
+            long value = counter.get ();
+
+            if (counter.nanos) {
+                result.append (" ").append (counter.name).append ("_seconds=")
+                    .append (format (value / 1e9));
+            } else {
+                result.append (" ").append (counter.name).append ("=").append (value);
+                result.append (" ").append (counter.name).append ("_per_sec=")
+                    .append (format ((value - counter.reported) / sinceLast));
+            }
+
+            counter.reported = value;
+        }
+
+        lastReportNanos = now;
+
+        return result.toString ();
+    }
+
+
+    private static String quote (String s)
+    {
+        return "\"" + s.replace ("\\", "\\\\").replace ("\"", "\\\"") + "\"";
+    }
+
+
+    /**
+     * The totals since <code>start</code> as JSON, grouped by stage: counts
+     * with their overall rates, and timers in seconds.
+     */
+    public static synchronized String summary ()
+    {
+        double elapsed = (System.nanoTime () - startNanos) / 1e9;
+
+        // stage -> "name": value pairs
+        Map<String, StringBuilder> stages = new TreeMap<String, StringBuilder> ();
+
+        for (Counter counter : counters.values ()) {
+            int dot = counter.name.indexOf ('.');
+            String stage = (dot > 0) ? counter.name.substring (0, dot) : "";
+            String name = counter.name.substring (dot + 1);
+
+            StringBuilder fields = stages.get (stage);
+            if (fields == null) {
+                fields = new StringBuilder ();
+                stages.put (stage, fields);
+            } else {
+                fields.append (",");
+            }
+
+            long value = counter.get ();
+
+            if (counter.nanos) {
+                fields.append (quote (name + "_seconds")).append (":").append (format (value / 1e9));
+            } else {
+                fields.append (quote (name)).append (":").append (value);
+                fields.append (",").append (quote (name + "_per_sec")).append (":")
+                    .append (format ((elapsed > 0) ? value / elapsed : 0));
+            }
+        }
+
+        StringBuilder result = new StringBuilder ("{");
+
+        result.append (quote ("tool")).append (":")
+            .append ((tool != null) ? quote (tool) : "null");
+        result.append (",").append (quote ("seconds")).append (":").append (format (elapsed));
+        result.append (",").append (quote ("stages")).append (":{");
+
+        boolean first = true;
+        for (Map.Entry<String, StringBuilder> stage : stages.entrySet ()) {
+            if (!first) {
+                result.append (",");
+            }
+            first = false;
+
+            result.append (quote (stage.getKey ())).append (":{")
+                .append (stage.getValue ()).append ("}");
+        }
+
+        result.append ("}}");
+
+        return result.toString ();
+    }
+
+
+    /**
+     * Stop reporting and write the summary.
+     */
+    public static void finish () throws IOException
+    {
+        String summary;
+
+        synchronized (Progress.class) {
+            stopReporter ();
+            summary = summary ();
+        }
+
+        String summaryFile = System.getProperty ("browse.progress.summary");
+
+        if (summaryFile != null) {
+            OutputStream out = new FileOutputStream (summaryFile);
+
+            try {
+                out.write ((summary + "\n").getBytes ("UTF-8"));
+            } finally {
+                out.close ();
+            }
+        } else {
+            System.err.println (summary);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.vufind.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Helpers for working with the byte array sort keys produced by a
+ * <code>Normalizer</code>.
+ *
+ * Sort keys are compared as unsigned bytes, which is the same order SQLite
+ * uses for the <code>key</code> column of the browse database.
+ */
+
+public class SortKeys
+{
+    public static final Comparator<byte[]> COMPARATOR = new Comparator<byte[]> () {
+        public int compare (byte[] left, byte[] right)
+        {
+            return SortKeys.compare (left, right);
+        }
+    };
+
+
+    public static int compare (byte[] left, byte[] right)
+    {
+        int len = Math.min (left.length, right.length);
+
+        for (int i = 0; i < len; i++) {
+            int a = (left[i] & 0xff);
+            int b = (right[i] & 0xff);
+            if (a != b) {
+                return a - b;
+            }
+        }
+
+        return left.length - right.length;
+    }
+
+
+    /**
+     * The part of a sort key that other keys starting with the same text will
+     * share.
+     *
+     * ICU collation keys hold the primary weights of the whole string, then a
+     * 0x01 separator and the weights for the other levels, so the key for
+     * "boa" isn't a prefix of the key for "boats", but its primary weights
+     * are.  Neither 0x00 nor 0x01 appear within a level, so we cut the key at
+     * the first of them.  Keys without them are returned whole.
+     */
+    public static byte[] primaryPrefix (byte[] key)
+    {
+        for (int i = 0; i < key.length; i++) {
+            if ((key[i] & 0xff) < 0x02) {
+                return Arrays.copyOf (key, i);
+            }
+        }
+
+        return key;
+    }
+
+
+    public static boolean startsWith (byte[] key, byte[] prefix)
+    {
+        if (key.length < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
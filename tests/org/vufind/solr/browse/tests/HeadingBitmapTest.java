@@ -0,0 +1,77 @@
+package org.vufind.solr.browse.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import org.vufind.util.HeadingBitmap;
+
+public class HeadingBitmapTest
+{
+    private HeadingBitmap bitmap (int... rowids)
+    {
+        HeadingBitmap.Builder builder = new HeadingBitmap.Builder ();
+
+        for (int rowid : rowids) {
+            builder.add (rowid);
+        }
+
+        return HeadingBitmap.decode (builder.toByteArray ());
+    }
+
+
+    @Test
+    public void roundTripsRowids () {
+        HeadingBitmap b = bitmap (1, 2, 3, 70, 200, 201);
+
+        assertEquals (6, b.count ());
+        assertTrue (b.get (1));
+        assertTrue (b.get (70));
+        assertTrue (b.get (201));
+        assertFalse (b.get (4));
+        assertFalse (b.get (202));
+        assertFalse (b.get (100000));
+    }
+
+
+    @Test
+    public void ranksAndSelects () {
+        HeadingBitmap b = bitmap (5, 64, 65, 130, 1000);
+
+        assertEquals (0, b.rank (5));
+        assertEquals (1, b.rank (6));
+        assertEquals (3, b.rank (130));
+        assertEquals (5, b.rank (5000));
+
+        assertEquals (5, b.select (0));
+        assertEquals (65, b.select (2));
+        assertEquals (1000, b.select (4));
+        assertEquals (-1, b.select (5));
+
+        for (int i = 0; i < b.count (); i++) {
+            assertEquals (i, b.rank (b.select (i)));
+        }
+    }
+
+
+    @Test
+    public void intersects () {
+        HeadingBitmap b = bitmap (1, 2, 3, 100, 300).and (bitmap (2, 3, 4, 300));
+
+        assertEquals (3, b.count ());
+        assertEquals (2, b.select (0));
+        assertEquals (300, b.select (2));
+    }
+
+
+    @Test
+    public void emptyBitmap () {
+        HeadingBitmap b = HeadingBitmap.decode (new byte[0]);
+
+        assertEquals (0, b.count ());
+        assertEquals (-1, b.select (0));
+        assertEquals (0, b.rank (10));
+    }
+}
@@ -0,0 +1,83 @@
+package org.vufind.solr.browse.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.vufind.util.Progress;
+
+public class ProgressTest
+{
+    private String oldInterval;
+
+
+    // No reporter thread, and put things back for later tests
+    @Before
+    public void setUp () {
+        oldInterval = System.getProperty ("browse.progress.interval");
+        System.setProperty ("browse.progress.interval", "0");
+    }
+
+
+    @After
+    public void tearDown () {
+        if (oldInterval == null) {
+            System.clearProperty ("browse.progress.interval");
+        } else {
+            System.setProperty ("browse.progress.interval", oldInterval);
+        }
+    }
+
+
+    @Test
+    public void countsAreSharedByName () {
+        Progress.counter ("shared.things").add (3);
+        Progress.counter ("shared.things").increment ();
+
+        assertEquals (4, Progress.counter ("shared.things").get ());
+    }
+
+
+    @Test
+    public void startResetsCounters () {
+        Progress.Counter counter = Progress.counter ("reset.things");
+        counter.add (10);
+
+        Progress.start ("test");
+
+        assertEquals (0, counter.get ());
+    }
+
+
+    @Test
+    public void summaryGroupsByStage () {
+        Progress.start ("test");
+
+        Progress.counter ("leech.terms_scanned").add (42);
+        Progress.timer ("print.normalize").add (1500000000L);
+
+        String summary = Progress.summary ();
+
+        assertTrue (summary, summary.startsWith ("{\"tool\":\"test\",\"seconds\":"));
+        assertTrue (summary, summary.contains ("\"leech\":{\"terms_scanned\":42,\"terms_scanned_per_sec\":"));
+        assertTrue (summary, summary.contains ("\"print\":{\"normalize_seconds\":1.5}"));
+    }
+
+
+    @Test
+    public void reportHasTotalsAndTimes () {
+        Progress.start ("test");
+
+        Progress.counter ("sqlite.headings").add (7);
+        Progress.timer ("sqlite.load").add (2000000000L);
+
+        String report = Progress.report ();
+
+        assertTrue (report, report.startsWith ("progress tool=test elapsed_seconds="));
+        assertTrue (report, report.contains (" sqlite.headings=7 sqlite.headings_per_sec="));
+        assertTrue (report, report.contains (" sqlite.load_seconds=2.0"));
+    }
+}
@@ -0,0 +1,73 @@
+package org.vufind.solr.browse.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import org.vufind.util.ICUCollatorNormalizer;
+import org.vufind.util.SortKeys;
+
+public class SortKeysTest
+{
+    @Test
+    public void comparesBytesAsUnsigned () {
+        assertTrue (SortKeys.compare (new byte[] { 0x7f }, new byte[] { (byte) 0x80 }) < 0);
+        assertTrue (SortKeys.compare (new byte[] { (byte) 0xff }, new byte[] { 0x01 }) > 0);
+    }
+
+
+    @Test
+    public void shorterPrefixSortsFirst () {
+        assertTrue (SortKeys.compare (new byte[] { 1, 2 }, new byte[] { 1, 2, 0 }) < 0);
+        assertTrue (SortKeys.compare (new byte[] {}, new byte[] { 0 }) < 0);
+    }
+
+
+    @Test
+    public void equalKeysCompareEqual () {
+        assertEquals (0, SortKeys.compare (new byte[] { 5, (byte) 0xaa }, new byte[] { 5, (byte) 0xaa }));
+        assertEquals (0, SortKeys.COMPARATOR.compare (new byte[] {}, new byte[] {}));
+    }
+
+
+    @Test
+    public void primaryPrefixStopsAtLevelSeparator () {
+        assertArrayEquals (new byte[] { 0x30, 0x40 },
+                           SortKeys.primaryPrefix (new byte[] { 0x30, 0x40, 0x01, 0x05, 0x00 }));
+        assertArrayEquals (new byte[] { 0x30 },
+                           SortKeys.primaryPrefix (new byte[] { 0x30 }));
+    }
+
+
+    @Test
+    public void matchesPrefixes () {
+        assertTrue (SortKeys.startsWith (new byte[] { 1, 2, 3 }, new byte[] { 1, 2 }));
+        assertTrue (SortKeys.startsWith (new byte[] { 1, 2 }, new byte[] {}));
+        assertFalse (SortKeys.startsWith (new byte[] { 1 }, new byte[] { 1, 2 }));
+        assertFalse (SortKeys.startsWith (new byte[] { 1, 3 }, new byte[] { 1, 2 }));
+    }
+
+
+    // Suggestions and jump labels rely on a prefix's primary key being a
+    // byte prefix of the keys of longer headings, whatever ICU does to
+    // compress them.
+    @Test
+    public void icuPrimaryPrefixMatchesLongerHeadings () {
+        ICUCollatorNormalizer normalizer = new ICUCollatorNormalizer ();
+
+        byte[] boa = SortKeys.primaryPrefix (normalizer.normalize ("boa"));
+        assertTrue (boa.length > 0);
+
+        assertTrue (SortKeys.startsWith (normalizer.normalize ("Boats"), boa));
+        assertTrue (SortKeys.startsWith (normalizer.normalize ("b\u00f6ats"), boa));
+        assertTrue (SortKeys.startsWith (normalizer.normalize ("boa constrictor"), boa));
+        assertFalse (SortKeys.startsWith (normalizer.normalize ("bob"), boa));
+
+        byte[] b = SortKeys.primaryPrefix (normalizer.normalize ("b"));
+        assertTrue (SortKeys.startsWith (normalizer.normalize ("Ba"), b));
+        assertFalse (SortKeys.startsWith (normalizer.normalize ("Ab"), b));
+    }
+}